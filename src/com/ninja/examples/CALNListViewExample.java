@@ -15,9 +15,9 @@ Copyright 2011 Ryan Mattison
 */ 
 package com.ninja.examples;
 
+import java.util.ArrayList;
 import java.util.List;
 
-import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.view.View;
 import android.view.ViewGroup;
@@ -29,14 +29,33 @@ import android.widget.TextView;
 import com.ninja.examples.R;
 import com.ninja.examples.utility.images.BaseImageActivity;
 import com.ninja.examples.utility.images.ImageProvider;
+import com.ninja.examples.utility.images.PrefetchHandle;
 import com.ninja.examples.utility.test.ImageBO;
 
 public class CALNListViewExample extends BaseImageActivity
 {
 
+	/**
+	 * Size the row images are shown at, see image_list_row.xml
+	 */
+	private static final int THUMBNAIL_SIZE_DIP = 60;
+
+	/**
+	 * How long the whole list may take to reach the disk ahead of scrolling.
+	 */
+	private static final long PREFETCH_TIMEOUT = 60 * 1000;
+
 	private List<ImageBO> _images;
 	private TestImageAdapter _imageAdapter;
 	private ListView _imageListView;
+	private int _thumbnailSize;
+
+	/**
+	 * Outlives the activity being recreated on a configuration change, so
+	 * the prefetch goes on instead of starting over. Only touched on the UI
+	 * thread.
+	 */
+	private static PrefetchHandle _prefetch;
 
 	@Override
 	public void onCreate(Bundle savedInstanceState)
@@ -48,8 +67,39 @@ public class CALNListViewExample extends BaseImageActivity
 		_imageListView = (ListView) findViewById(R.id.imageListView);
 		_imageAdapter = new TestImageAdapter();
 		_images = ImageBO.getTestData();
+		_thumbnailSize = (int) (THUMBNAIL_SIZE_DIP
+				* getResources().getDisplayMetrics().density + .5F);
 
 		getListView().setAdapter(getAdapter());
+
+		// every image of the list goes to disk while the first rows load,
+		// none of them decoded until its row is shown. Recreated after a
+		// rotation, the one already running carries on.
+		if (savedInstanceState == null || _prefetch == null)
+		{
+			if (_prefetch != null)
+			{
+				_prefetch.cancel();
+			}
+			List<String> urls = new ArrayList<String>(_images.size());
+			for (ImageBO image : _images)
+			{
+				urls.add(image.getImageUrl());
+			}
+			_prefetch = ImageProvider.prefetchAll(urls, 0, 0,
+					ImageProvider.PRIORITY_PREFETCH, PREFETCH_TIMEOUT, null);
+		}
+	}
+
+	@Override
+	protected void onDestroy()
+	{
+		super.onDestroy();
+		if (isFinishing() && _prefetch != null)
+		{
+			_prefetch.cancel();
+			_prefetch = null;
+		}
 	}
 
 	public class TestImageAdapter extends BaseAdapter
@@ -98,9 +148,7 @@ public class CALNListViewExample extends BaseImageActivity
 				viewHolder = (ViewHolder) convertView.getTag();
 			}
 
-			Bitmap bitmap = solveBitmapCrisis(position);
-
-			viewHolder.imageRowImage.setImageBitmap(bitmap);
+			solveBitmapCrisis(viewHolder.imageRowImage, position);
 			viewHolder.imageRowTitle
 					.setText(getList().get(position).getTitle());
 
@@ -108,29 +156,27 @@ public class CALNListViewExample extends BaseImageActivity
 		}
 
 		/** 
-		 * if its already downloaded it'll return the bitmap
-		 * if it isn't yet downloaded it'll queue the bitmap up to be downloaded, 
-		 * if there isn't a proper url it'll return a coming soon bitmap
+		 * if its already downloaded it'll show the bitmap
+		 * if it isn't yet downloaded it'll show the loading bitmap and queue
+		 * the bitmap up to be downloaded, it is set into the row once it's done
+		 * if there isn't a proper url it'll show a coming soon bitmap
+		 * whatever the recycled row asked for before is cancelled.
+		 * @param imageView
 		 * @param position
-		 * @return
 		 */
-		private Bitmap solveBitmapCrisis(int position)
+		private void solveBitmapCrisis(ImageView imageView, int position)
 		{
-			Bitmap bitmap;
 			if (getList().get(position).getImageUrl() != null
 					&& !getList().get(position).getImageUrl().equals(""))
 			{
-				bitmap = ImageProvider.getBitmap(getList().get(position)
-						.getImageUrl(), getNotifyHandler(), TAG);
+				ImageProvider.setImage(imageView, getList().get(position)
+						.getImageUrl(), _thumbnailSize, _thumbnailSize,
+						ImageProvider.getLoadingImage(), getImageGroup());
 			} else
 			{
-				bitmap = ImageProvider.getComingSoonImage();
+				ImageProvider.cancel(imageView);
+				imageView.setImageBitmap(ImageProvider.getComingSoonImage());
 			}
-			if (bitmap == null)
-			{
-				bitmap = ImageProvider.getLoadingImage();
-			}
-			return bitmap;
 		}
 	}
 
@@ -151,4 +197,16 @@ public class CALNListViewExample extends BaseImageActivity
 	{
 		return _images;
 	}
+
+	@Override
+	protected String getImageUrl(int position)
+	{
+		return getList().get(position).getImageUrl();
+	}
+
+	@Override
+	protected int getImageSize()
+	{
+		return _thumbnailSize;
+	}
 }
@@ -20,6 +20,7 @@ import com.ninja.examples.utility.images.ImageNotifyHandler.OnImageUpdateListene
 import com.ninja.examples.utility.images.ImageProvider;
 
 import android.app.Activity;
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.widget.ImageView;
 
@@ -28,6 +29,12 @@ public class CALNSingleImageExample extends Activity {
 	private ImageView _testImageView;
 	private static final String TEST_IMAGE_URL = "http://www.twistedcop.com/images/3.jpg";
 
+	/**
+	 * Scope keeping the image cached while this activity exists.
+	 */
+	private static final String IMAGE_GROUP = CALNSingleImageExample.class
+			.getName();
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -36,15 +43,39 @@ public class CALNSingleImageExample extends Activity {
 
 		_testImageView = (ImageView) findViewById(R.id.testImageView);
 
-		_testImageView.setImageBitmap(ImageProvider.getLargeLoadingImage());
-		ImageProvider.getBitmap(TEST_IMAGE_URL, new ImageNotifyHandler(
-				new OnImageUpdateListener() {
+		ImageProvider.openScope(IMAGE_GROUP);
+		Bitmap bitmap = ImageProvider.getBitmap(TEST_IMAGE_URL,
+				new ImageNotifyHandler(new OnImageUpdateListener() {
 					@Override
 					public void onImageUpdate(String remoteImageUrl) {
-						_testImageView.setImageBitmap(ImageProvider
-								.getBitmapFromCache(remoteImageUrl));
+						// called for the low resolution preview first, then
+						// again once the full image is decoded. Nothing is
+						// cached for a host that is failing fast.
+						Bitmap image = ImageProvider
+								.getBitmapFromCache(remoteImageUrl);
+						if (image != null) {
+							_testImageView.setImageBitmap(image);
+						} else {
+							_testImageView.setImageDrawable(ImageProvider
+									.getComingSoonDrawable());
+						}
 					}
-				}), this.getClass().getName());
+				}), IMAGE_GROUP);
+
+		// cached from the last visit, or failed lately, the handler won't be
+		// called then.
+		if (bitmap != null) {
+			_testImageView.setImageBitmap(bitmap);
+		} else {
+			_testImageView.setImageDrawable(ImageProvider
+					.getLargeLoadingDrawable());
+		}
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		ImageProvider.closeScope(IMAGE_GROUP);
 	}
 
 }
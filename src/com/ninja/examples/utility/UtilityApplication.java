@@ -18,6 +18,8 @@ package com.ninja.examples.utility;
 
 import android.app.Application;
 
+import com.ninja.examples.utility.images.ImageProvider;
+
 public abstract class UtilityApplication extends Application
 {
 	@Override
@@ -25,12 +27,36 @@ public abstract class UtilityApplication extends Application
 	{
 		super.onCreate();
 		setUpGlobals();
-		
-		
+
+		// workers start with the first image asked for, only the
+		// placeholders are worth having ready before that.
+		ImageProvider.preloadPlaceholders();
 	}
 
 	public void setUpGlobals()
 	{
 		Globals.getInstance().setContext(this);
 	}
+
+	@Override
+	public void onLowMemory()
+	{
+		super.onLowMemory();
+		ImageProvider.onLowMemory();
+	}
+
+	/**
+	 * Called by API 14 and up as memory gets tight. Below API 14 only
+	 * onLowMemory() is called, the project builds against API 14 but still
+	 * runs on API 8.
+	 * 
+	 * @param level
+	 *            - One of the ImageProvider.TRIM_MEMORY_ levels.
+	 */
+	@Override
+	public void onTrimMemory(int level)
+	{
+		super.onTrimMemory(level);
+		ImageProvider.onTrimMemory(level);
+	}
 }
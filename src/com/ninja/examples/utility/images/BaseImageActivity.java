@@ -15,6 +15,7 @@ Copyright 2011 Ryan Mattison
  */
 package com.ninja.examples.utility.images;
 
+import java.util.HashSet;
 import java.util.List;
 
 import android.app.Activity;
@@ -23,10 +24,12 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Window;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.BaseAdapter;
 import android.widget.ListView;
 
-import com.ninja.examples.utility.images.ImageNotifyHandler.OnImageUpdateListener;
+import com.ninja.examples.utility.images.ImageNotifyHandler.OnImageBatchUpdateListener;
 
 public abstract class BaseImageActivity extends Activity {
 
@@ -38,6 +41,17 @@ public abstract class BaseImageActivity extends Activity {
 
 	private boolean _allImageLoaded = false;
 
+	/**
+	 * First and last position last reported to the ImageProvider as visible.
+	 */
+	private int _firstVisiblePosition = -1;
+	private int _lastVisiblePosition = -1;
+
+	/**
+	 * Loads the images of the rows about to scroll on screen.
+	 */
+	private ImagePrefetcher _prefetcher;
+
 	/**
 	 * Returns the ListView
 	 */
@@ -49,17 +63,25 @@ public abstract class BaseImageActivity extends Activity {
 	protected abstract BaseAdapter getAdapter();
 
 	/**
-	 * Set up the image provider, generally the ImageNotifyHandler
+	 * Set up the image provider, generally the ImageNotifyHandler. Images
+	 * finishing within the same frame share one adapter refresh.
 	 */
 	protected ImageNotifyHandler getNotifyHandler() {
 		if (_imageNotifyHandler == null) {
 			_imageNotifyHandler = new ImageNotifyHandler(
-					new OnImageUpdateListener() {
+					new OnImageBatchUpdateListener() {
 						public void onImageUpdate(String remoteImageUrl) {
 							if (!isFinishing()) {
 								getAdapter().notifyDataSetChanged();
 							}
 						}
+
+						public void onImageBatchUpdate(
+								List<String> remoteImageUrls) {
+							if (!isFinishing()) {
+								getAdapter().notifyDataSetChanged();
+							}
+						}
 					});
 		}
 
@@ -78,6 +100,88 @@ public abstract class BaseImageActivity extends Activity {
 	 */
 	protected abstract List<?> getList();
 
+	/**
+	 * The image URL of an item in getList(), used to load the images on
+	 * screen before those that scrolled away. Returns null unless overridden.
+	 */
+	protected String getImageUrl(int position) {
+		return null;
+	}
+
+	/**
+	 * Size in pixels the rows show their images at, prefetched images are
+	 * loaded at this size. 0 for full size.
+	 */
+	protected int getImageSize() {
+		return 0;
+	}
+
+	/**
+	 * Group or Activity name the rows load their images with, also the name
+	 * of the scope that keeps the images the rows show cached while this
+	 * activity exists. The class name by default, so activities don't share
+	 * a scope.
+	 */
+	protected String getImageGroup() {
+		return getClass().getName();
+	}
+
+	/**
+	 * Listens to the ListView scrolling and keeps the ImageProvider up to date
+	 * on which images are visible. Subclasses that set their own
+	 * OnScrollListener should pass the calls on to this one.
+	 */
+	protected OnScrollListener getScrollListener() {
+		return _scrollListener;
+	}
+
+	private final OnScrollListener _scrollListener = new OnScrollListener() {
+		public void onScrollStateChanged(AbsListView view, int scrollState) {
+			// hold decoding and delivery back while flinging, release it all
+			// as soon as the list is touched or settles.
+			if (scrollState == SCROLL_STATE_FLING) {
+				ImageProvider.pause();
+			} else {
+				ImageProvider.resume();
+			}
+		}
+
+		public void onScroll(AbsListView view, int firstVisibleItem,
+				int visibleItemCount, int totalItemCount) {
+			updateVisibleRange(firstVisibleItem, firstVisibleItem
+					+ visibleItemCount - 1);
+			if (_prefetcher != null) {
+				_prefetcher.onScroll(firstVisibleItem, visibleItemCount);
+			}
+		}
+	};
+
+	/*
+	 * Promotes the images in the visible range, demotes the rest.
+	 */
+	private void updateVisibleRange(int first, int last) {
+		if (first == _firstVisiblePosition && last == _lastVisiblePosition) {
+			return;
+		}
+		_firstVisiblePosition = first;
+		_lastVisiblePosition = last;
+
+		List<?> list = getList();
+		if (list == null) {
+			return;
+		}
+
+		HashSet<String> visibleUrls = new HashSet<String>();
+		for (int position = Math.max(first, 0); position <= last
+				&& position < list.size(); position++) {
+			String url = getImageUrl(position);
+			if (url != null) {
+				visibleUrls.add(url);
+			}
+		}
+		ImageProvider.setVisibleUrls(visibleUrls);
+	}
+
 	/**
 	 * In case all the images didn't load previously, we don't want to keep them
 	 * in memory, or do web services to find them, but we do want them to load
@@ -106,8 +210,17 @@ public abstract class BaseImageActivity extends Activity {
 	@Override
 	protected void onPause() {
 		super.onPause();
+		ImageProvider.resume();
+		if (_prefetcher != null) {
+			_prefetcher.cancelAll();
+			Log.i(TAG, "Image Provider: rows bound with their image cached: "
+					+ ImageProvider.getBindHitCount() + " of "
+					+ ImageProvider.getBindCount() + ", prefetched: "
+					+ _prefetcher.getPrefetchCount());
+		}
+		// the cache stays warm for onResume, memory is only given back when
+		// the system asks for it, see UtilityApplication.onTrimMemory(int).
 		setAllImagesLoaded();
-		ImageProvider.clear();
 	}
 
 	private boolean getAllImagesLoaded() {
@@ -120,6 +233,24 @@ public abstract class BaseImageActivity extends Activity {
 				+ _allImageLoaded);
 	}
 
+	@Override
+	protected void onPostCreate(Bundle savedInstanceState) {
+		super.onPostCreate(savedInstanceState);
+		if (getListView() != null) {
+			_prefetcher = new ImagePrefetcher(new ImagePrefetcher.Source() {
+				public String getImageUrl(int position) {
+					return BaseImageActivity.this.getImageUrl(position);
+				}
+
+				public int getCount() {
+					List<?> list = getList();
+					return list == null ? 0 : list.size();
+				}
+			}, getImageSize(), getImageSize(), getImageGroup());
+			getListView().setOnScrollListener(getScrollListener());
+		}
+	}
+
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -128,6 +259,13 @@ public abstract class BaseImageActivity extends Activity {
 
 		_loInflater = (LayoutInflater) getSystemService(Context.LAYOUT_INFLATER_SERVICE);
 
+		ImageProvider.openScope(getImageGroup());
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		ImageProvider.closeScope(getImageGroup());
 	}
 
 }
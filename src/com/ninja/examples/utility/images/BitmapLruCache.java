@@ -0,0 +1,439 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.ninja.examples.utility.images;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.graphics.Bitmap;
+
+/**
+ * A memory cache of decoded bitmaps that is bounded by the total amount of
+ * bytes the bitmaps hold, not by how many there are. When the budget is
+ * exceeded the least recently used bitmap is evicted.
+ *
+ * The keys are spread over a few segments, each with its own lock, so a
+ * lookup only ever blocks other lookups that hash into the same segment.
+ *
+ * A key can be pinned. A pinned bitmap is only evicted once every bitmap
+ * that isn't pinned is gone and the cache is still over budget.
+ */
+public class BitmapLruCache {
+
+	/**
+	 * Amount of segments the keys are spread over.
+	 */
+	private static final int DEFAULT_SEGMENT_COUNT = 4;
+
+	private final Segment[] _segments;
+
+	/**
+	 * Maximum amount of bytes, changes if the budget is resized.
+	 */
+	private volatile long _maxSize;
+
+	/**
+	 * Bytes held by every segment combined.
+	 */
+	private final AtomicLong _size = new AtomicLong();
+
+	/**
+	 * Ticks every time an entry is touched, the entry with the lowest tick is
+	 * the least recently used across all segments.
+	 */
+	private final AtomicLong _clock = new AtomicLong();
+
+	private final AtomicLong _hitCount = new AtomicLong();
+	private final AtomicLong _missCount = new AtomicLong();
+	private final AtomicLong _evictionCount = new AtomicLong();
+
+	/**
+	 * @param maxSize
+	 *            - Maximum amount of bytes the cached bitmaps may take.
+	 */
+	public BitmapLruCache(long maxSize) {
+		this(maxSize, DEFAULT_SEGMENT_COUNT);
+	}
+
+	/**
+	 * @param maxSize
+	 *            - Maximum amount of bytes the cached bitmaps may take.
+	 * @param segmentCount
+	 *            - Amount of independently locked segments.
+	 */
+	public BitmapLruCache(long maxSize, int segmentCount) {
+		if (segmentCount < 1) {
+			segmentCount = 1;
+		}
+		_maxSize = maxSize;
+		_segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			_segments[i] = new Segment();
+		}
+	}
+
+	/**
+	 * Works out a byte budget as a fraction of the largest heap this process
+	 * is allowed to grow to.
+	 *
+	 * @param fraction
+	 *            - between 0 and 1, 0.125 would be an eighth of the heap.
+	 */
+	public static long getHeapFractionSize(float fraction) {
+		return (long) (Runtime.getRuntime().maxMemory() * fraction);
+	}
+
+	/**
+	 * Amount of bytes the pixels of a bitmap take up.
+	 */
+	public static int getBitmapSize(Bitmap bitmap) {
+		if (bitmap == null) {
+			return 0;
+		}
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	public Bitmap get(String key) {
+		if (key == null) {
+			return null;
+		}
+
+		Entry entry = segmentFor(key).get(key, _clock.incrementAndGet());
+		if (entry != null) {
+			_hitCount.incrementAndGet();
+			return entry.bitmap;
+		}
+
+		_missCount.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Same as get(), without counting as a hit or miss. For lookups the
+	 * cache's owner makes for itself, which would skew the hit rate.
+	 */
+	public Bitmap peek(String key) {
+		if (key == null) {
+			return null;
+		}
+
+		Entry entry = segmentFor(key).get(key, _clock.incrementAndGet());
+		return entry == null ? null : entry.bitmap;
+	}
+
+	/**
+	 * Whether a key is cached, without counting as a hit or miss or making
+	 * the entry more recently used.
+	 */
+	public boolean contains(String key) {
+		return key != null && segmentFor(key).contains(key);
+	}
+
+	/**
+	 * Caches a bitmap, then evicts until the cache is back under budget.
+	 *
+	 * @return the bitmap that was previously cached under the key.
+	 */
+	public Bitmap put(String key, Bitmap bitmap) {
+		if (key == null || bitmap == null) {
+			return null;
+		}
+
+		Entry entry = new Entry(key, bitmap, getBitmapSize(bitmap));
+		entry.tick = _clock.incrementAndGet();
+		Entry previous = segmentFor(key).put(entry);
+
+		_size.addAndGet(entry.size);
+		if (previous != null) {
+			_size.addAndGet(-previous.size);
+			if (previous.bitmap != bitmap) {
+				entryRemoved(false, key, previous.bitmap);
+			}
+		}
+
+		trimToSize(_maxSize);
+		return previous == null ? null : previous.bitmap;
+	}
+
+	public Bitmap remove(String key) {
+		if (key == null) {
+			return null;
+		}
+
+		Entry previous = segmentFor(key).remove(key);
+		if (previous != null) {
+			_size.addAndGet(-previous.size);
+			entryRemoved(false, key, previous.bitmap);
+			return previous.bitmap;
+		}
+		return null;
+	}
+
+	/**
+	 * Removes every bitmap, these don't count as evictions.
+	 */
+	public void clear() {
+		for (Segment segment : _segments) {
+			for (Entry entry : segment.drain()) {
+				_size.addAndGet(-entry.size);
+				entryRemoved(false, entry.key, entry.bitmap);
+			}
+		}
+	}
+
+	/**
+	 * Keeps the bitmap of a key, cached now or later, out of the normal
+	 * eviction order until it is unpinned as often as it was pinned.
+	 */
+	public void pin(String key) {
+		if (key != null) {
+			segmentFor(key).pin(key);
+		}
+	}
+
+	/**
+	 * Lets a pinned key be evicted again once nothing else pins it. Call
+	 * trimToSize() after unpinning, a cache that went over budget on pinned
+	 * bitmaps only shrinks then.
+	 */
+	public void unpin(String key) {
+		if (key != null) {
+			segmentFor(key).unpin(key, _clock.incrementAndGet());
+		}
+	}
+
+	/**
+	 * Evicts the least recently used bitmaps until the cache holds no more
+	 * than maxSize bytes, pinned ones only once there is nothing else.
+	 */
+	public void trimToSize(long maxSize) {
+		boolean pinned = false;
+		while (_size.get() > maxSize) {
+			Segment oldest = null;
+			long oldestTick = Long.MAX_VALUE;
+			for (Segment segment : _segments) {
+				long tick = segment.eldestTick(pinned);
+				if (tick < oldestTick) {
+					oldestTick = tick;
+					oldest = segment;
+				}
+			}
+
+			if (oldest == null) {
+				if (pinned) {
+					break;
+				}
+				pinned = true;
+				continue;
+			}
+
+			Entry evicted = oldest.removeEldest(oldestTick, pinned);
+			if (evicted != null) {
+				_size.addAndGet(-evicted.size);
+				_evictionCount.incrementAndGet();
+				entryRemoved(true, evicted.key, evicted.bitmap);
+			}
+		}
+	}
+
+	/**
+	 * Changes the budget, evicting straight away if it shrank.
+	 */
+	public void setMaxSize(long maxSize) {
+		_maxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	public long getMaxSize() {
+		return _maxSize;
+	}
+
+	/**
+	 * Amount of bytes currently cached.
+	 */
+	public long getSize() {
+		return _size.get();
+	}
+
+	/**
+	 * Amount of bitmaps currently cached.
+	 */
+	public int getCount() {
+		int count = 0;
+		for (Segment segment : _segments) {
+			count += segment.count();
+		}
+		return count;
+	}
+
+	public long getHitCount() {
+		return _hitCount.get();
+	}
+
+	public long getMissCount() {
+		return _missCount.get();
+	}
+
+	/**
+	 * Amount of bitmaps removed to stay under budget.
+	 */
+	public long getEvictionCount() {
+		return _evictionCount.get();
+	}
+
+	/**
+	 * Called after a bitmap leaves the cache, either evicted to stay under
+	 * budget or removed / replaced by a caller. Does nothing by default.
+	 */
+	protected void entryRemoved(boolean evicted, String key, Bitmap oldValue) {
+	}
+
+	private Segment segmentFor(String key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return _segments[(hash & 0x7fffffff) % _segments.length];
+	}
+
+	private static final class Entry {
+		final String key;
+		final Bitmap bitmap;
+		final int size;
+		volatile long tick;
+
+		Entry(String key, Bitmap bitmap, int size) {
+			this.key = key;
+			this.bitmap = bitmap;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Two access ordered maps, one for the pinned entries, guarded by one
+	 * lock.
+	 */
+	private static final class Segment {
+		private final LinkedHashMap<String, Entry> _map = new LinkedHashMap<String, Entry>(
+				16, .75F, true);
+		private final LinkedHashMap<String, Entry> _pinned = new LinkedHashMap<String, Entry>(
+				16, .75F, true);
+
+		/**
+		 * How often each pinned key is pinned, cached or not.
+		 */
+		private final HashMap<String, Integer> _pins = new HashMap<String, Integer>();
+
+		synchronized Entry get(String key, long tick) {
+			Entry entry = _map.get(key);
+			if (entry == null) {
+				entry = _pinned.get(key);
+			}
+			if (entry != null) {
+				entry.tick = tick;
+			}
+			return entry;
+		}
+
+		synchronized boolean contains(String key) {
+			return _map.containsKey(key) || _pinned.containsKey(key);
+		}
+
+		synchronized Entry put(Entry entry) {
+			Entry previous = remove(entry.key);
+			(_pins.containsKey(entry.key) ? _pinned : _map).put(entry.key,
+					entry);
+			return previous;
+		}
+
+		synchronized Entry remove(String key) {
+			Entry previous = _map.remove(key);
+			return previous != null ? previous : _pinned.remove(key);
+		}
+
+		synchronized void pin(String key) {
+			Integer pins = _pins.get(key);
+			_pins.put(key, pins == null ? 1 : pins + 1);
+			Entry entry = _map.remove(key);
+			if (entry != null) {
+				_pinned.put(key, entry);
+			}
+		}
+
+		synchronized void unpin(String key, long tick) {
+			Integer pins = _pins.get(key);
+			if (pins == null) {
+				return;
+			}
+			if (pins > 1) {
+				_pins.put(key, pins - 1);
+				return;
+			}
+
+			_pins.remove(key);
+			Entry entry = _pinned.remove(key);
+			if (entry != null) {
+				// back in line as the most recently used.
+				entry.tick = tick;
+				_map.put(key, entry);
+			}
+		}
+
+		synchronized Entry[] drain() {
+			Entry[] entries = new Entry[_map.size() + _pinned.size()];
+			int i = 0;
+			for (Entry entry : _map.values()) {
+				entries[i++] = entry;
+			}
+			for (Entry entry : _pinned.values()) {
+				entries[i++] = entry;
+			}
+			_map.clear();
+			_pinned.clear();
+			return entries;
+		}
+
+		synchronized int count() {
+			return _map.size() + _pinned.size();
+		}
+
+		synchronized long eldestTick(boolean pinned) {
+			LinkedHashMap<String, Entry> map = pinned ? _pinned : _map;
+			if (map.isEmpty()) {
+				return Long.MAX_VALUE;
+			}
+			return map.values().iterator().next().tick;
+		}
+
+		/**
+		 * Removes the eldest entry, as long as nothing touched it since its
+		 * tick was read.
+		 */
+		synchronized Entry removeEldest(long expectedTick, boolean pinned) {
+			LinkedHashMap<String, Entry> map = pinned ? _pinned : _map;
+			if (map.isEmpty()) {
+				return null;
+			}
+			Map.Entry<String, Entry> eldest = map.entrySet().iterator().next();
+			if (eldest.getValue().tick != expectedTick) {
+				return null;
+			}
+			map.remove(eldest.getKey());
+			return eldest.getValue();
+		}
+	}
+}
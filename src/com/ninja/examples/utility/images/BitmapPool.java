@@ -0,0 +1,230 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package com.ninja.examples.utility.images;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * Bitmaps nobody uses anymore, kept so a decode of the same size can draw
+ * into one of them instead of allocating a new one. Grouped by width, height
+ * and config, bounded by its own byte budget; the bitmaps pooled longest ago
+ * go first.
+ *
+ * Decoding into an existing bitmap needs API 11, below that nothing is
+ * pooled.
+ */
+public class BitmapPool {
+
+	/**
+	 * BitmapFactory.Options.inBitmap appeared in Honeycomb.
+	 */
+	private static final int REUSE_SDK = 11;
+
+	/**
+	 * From KitKat a bitmap can be reused for any decode that fits, before
+	 * only for one of exactly its size that isn't subsampled.
+	 */
+	private static final int REUSE_SUBSAMPLED_SDK = 19;
+
+	/**
+	 * Fraction of the maximum heap that has to stay free, below that the
+	 * pool empties itself rather than keep bitmaps nobody uses.
+	 */
+	private static final float LOW_MEMORY_FRACTION = .1F;
+
+	/**
+	 * Bitmaps of one size and config, guarded by this.
+	 */
+	private final HashMap<String, LinkedList<Bitmap>> _groups = new HashMap<String, LinkedList<Bitmap>>();
+
+	/**
+	 * Every pooled bitmap, the oldest first, guarded by this.
+	 */
+	private final LinkedList<Bitmap> _order = new LinkedList<Bitmap>();
+
+	private long _maxSize;
+	private long _size = 0;
+	private long _hitCount = 0;
+	private long _missCount = 0;
+
+	/**
+	 * @param maxSize
+	 *            - Maximum amount of bytes the pooled bitmaps may take.
+	 */
+	public BitmapPool(long maxSize) {
+		_maxSize = maxSize;
+	}
+
+	/**
+	 * Whether this device can decode into an existing bitmap at all.
+	 */
+	public static boolean isReuseSupported() {
+		return Build.VERSION.SDK_INT >= REUSE_SDK;
+	}
+
+	/**
+	 * Whether this device can decode a subsampled image into an existing
+	 * bitmap.
+	 */
+	public static boolean isSubsampledReuseSupported() {
+		return Build.VERSION.SDK_INT >= REUSE_SUBSAMPLED_SDK;
+	}
+
+	/**
+	 * Takes a bitmap of the size and config out of the pool.
+	 * 
+	 * @return null if there is none.
+	 */
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		LinkedList<Bitmap> group = _groups.get(keyFor(width, height, config));
+		if (group == null || group.isEmpty()) {
+			_missCount++;
+			return null;
+		}
+
+		Bitmap bitmap = group.removeLast();
+		if (group.isEmpty()) {
+			_groups.remove(keyFor(width, height, config));
+		}
+		_order.remove(bitmap);
+		_size -= BitmapLruCache.getBitmapSize(bitmap);
+		_hitCount++;
+		return bitmap;
+	}
+
+	/**
+	 * Pools a bitmap nobody draws or holds anymore. One that can't be reused,
+	 * doesn't fit the budget or comes in while memory is low is recycled
+	 * instead.
+	 * 
+	 * @return true if the bitmap was pooled.
+	 */
+	public synchronized boolean put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled()) {
+			return false;
+		}
+
+		int size = BitmapLruCache.getBitmapSize(bitmap);
+		if (!isReuseSupported() || !bitmap.isMutable()
+				|| bitmap.getConfig() == null || size > _maxSize) {
+			bitmap.recycle();
+			return false;
+		}
+		if (isMemoryLow()) {
+			bitmap.recycle();
+			trimToSize(0);
+			return false;
+		}
+
+		String key = keyFor(bitmap.getWidth(), bitmap.getHeight(),
+				bitmap.getConfig());
+		LinkedList<Bitmap> group = _groups.get(key);
+		if (group == null) {
+			group = new LinkedList<Bitmap>();
+			_groups.put(key, group);
+		}
+		group.addLast(bitmap);
+		_order.addLast(bitmap);
+		_size += size;
+
+		trimToSize(_maxSize);
+		return true;
+	}
+
+	/**
+	 * Recycles the bitmaps pooled longest ago until the pool holds no more
+	 * than maxSize bytes.
+	 */
+	public synchronized void trimToSize(long maxSize) {
+		Iterator<Bitmap> iterator = _order.iterator();
+		while (_size > maxSize && iterator.hasNext()) {
+			Bitmap bitmap = iterator.next();
+			iterator.remove();
+
+			String key = keyFor(bitmap.getWidth(), bitmap.getHeight(),
+					bitmap.getConfig());
+			LinkedList<Bitmap> group = _groups.get(key);
+			if (group != null) {
+				group.remove(bitmap);
+				if (group.isEmpty()) {
+					_groups.remove(key);
+				}
+			}
+			_size -= BitmapLruCache.getBitmapSize(bitmap);
+			bitmap.recycle();
+		}
+	}
+
+	public synchronized void clear() {
+		trimToSize(0);
+	}
+
+	public synchronized void setMaxSize(long maxSize) {
+		_maxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	public synchronized long getMaxSize() {
+		return _maxSize;
+	}
+
+	/**
+	 * Amount of bytes the pooled bitmaps take.
+	 */
+	public synchronized long getSize() {
+		return _size;
+	}
+
+	public synchronized int getCount() {
+		return _order.size();
+	}
+
+	/**
+	 * Times a decode found a bitmap to reuse.
+	 */
+	public synchronized long getHitCount() {
+		return _hitCount;
+	}
+
+	/**
+	 * Times a decode had to allocate a new bitmap.
+	 */
+	public synchronized long getMissCount() {
+		return _missCount;
+	}
+
+	/*
+	 * Whether the heap is close enough to its limit that pooled bitmaps would
+	 * push out ones that are used.
+	 */
+	private static boolean isMemoryLow() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		long free = runtime.maxMemory() - used;
+		return free < runtime.maxMemory() * LOW_MEMORY_FRACTION;
+	}
+
+	private static String keyFor(int width, int height, Bitmap.Config config) {
+		return width + "x" + height + ":" + config;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.ninja.examples.utility.images;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps a few byte arrays of one size around so the download and decode
+ * threads can reuse them instead of allocating a new buffer per image.
+ */
+public final class ByteArrayPool {
+
+	private final int _arraySize;
+	private final int _maxArrays;
+	private final ArrayList<byte[]> _arrays;
+
+	/**
+	 * @param arraySize
+	 *            - Length of every array handed out.
+	 * @param maxArrays
+	 *            - Amount of released arrays kept, any more are left to the
+	 *            garbage collector.
+	 */
+	public ByteArrayPool(int arraySize, int maxArrays) {
+		_arraySize = arraySize;
+		_maxArrays = maxArrays;
+		_arrays = new ArrayList<byte[]>(maxArrays);
+	}
+
+	/**
+	 * Returns a pooled array, or a new one if the pool is empty.
+	 */
+	public byte[] acquire() {
+		synchronized (_arrays) {
+			int size = _arrays.size();
+			if (size > 0) {
+				return _arrays.remove(size - 1);
+			}
+		}
+		return new byte[_arraySize];
+	}
+
+	/**
+	 * Hands an array back, it must not be used by the caller afterwards.
+	 */
+	public void release(byte[] array) {
+		if (array == null || array.length != _arraySize) {
+			return;
+		}
+		synchronized (_arrays) {
+			if (_arrays.size() < _maxArrays) {
+				_arrays.add(array);
+			}
+		}
+	}
+
+	public int getArraySize() {
+		return _arraySize;
+	}
+
+	/**
+	 * Drops every pooled array.
+	 */
+	public void clear() {
+		synchronized (_arrays) {
+			_arrays.clear();
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.ninja.examples.utility.images;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+/**
+ * Remembers which URL was downloaded first with each encoded payload, keyed
+ * by a hash of the bytes. A URL whose download turns out to hold the same
+ * bytes becomes an alias of that one, and is cached and downloaded under
+ * it for a while.
+ * 
+ * An alias expires after its time to live, the URL is then looked up under
+ * its own name again and downloaded if it isn't cached under it. The same
+ * bytes once more confirm the alias for another time to live, different
+ * bytes end it. Until an alias has been confirmed the URL's own copies are
+ * worth keeping, it may have changed since.
+ * 
+ * Kept in memory only and bounded, the payloads and aliases seen least
+ * recently are forgotten first.
+ */
+final class ContentHashIndex {
+
+	private static final class Alias {
+		final String owner;
+		long expires;
+		boolean confirmed;
+
+		Alias(String owner) {
+			this.owner = owner;
+		}
+	}
+
+	private final int _maxSize;
+
+	private final long _aliasTimeToLive;
+
+	/**
+	 * Hash to the URL that was downloaded with it first.
+	 */
+	private final LinkedHashMap<String, String> _owners;
+
+	/**
+	 * The other way around, URL to the hash it owns.
+	 */
+	private final HashMap<String, String> _hashes = new HashMap<String, String>();
+
+	/**
+	 * URL to the URL it shares its bytes with, expired ones included until
+	 * they are downloaded again or pushed out.
+	 */
+	private final LinkedHashMap<String, Alias> _aliases;
+
+	/**
+	 * @param maxSize
+	 *            - Most hashes, and separately most aliases, to remember.
+	 * @param aliasTimeToLive
+	 *            - Milliseconds an alias is used for before the URL is
+	 *            checked again.
+	 */
+	ContentHashIndex(int maxSize, long aliasTimeToLive) {
+		_maxSize = maxSize;
+		_aliasTimeToLive = aliasTimeToLive;
+		_owners = new LinkedHashMap<String, String>(16, .75F, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, String> eldest) {
+				if (size() <= _maxSize) {
+					return false;
+				}
+				_hashes.remove(eldest.getValue());
+				return true;
+			}
+		};
+		_aliases = new LinkedHashMap<String, Alias>(16, .75F, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, Alias> eldest) {
+				return size() > _maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Records that a URL was downloaded with a payload.
+	 * 
+	 * @return the URL the same payload was downloaded under first, or null
+	 *         if it is this one.
+	 */
+	synchronized String add(String hash, String url) {
+		String previousHash = _hashes.get(url);
+		if (previousHash != null && !previousHash.equals(hash)) {
+			// the URL serves something else now.
+			_owners.remove(previousHash);
+			_hashes.remove(url);
+			Iterator<Alias> aliases = _aliases.values().iterator();
+			while (aliases.hasNext()) {
+				if (aliases.next().owner.equals(url)) {
+					aliases.remove();
+				}
+			}
+		}
+
+		String owner = _owners.get(hash);
+		if (owner == null || owner.equals(url)) {
+			_owners.put(hash, url);
+			_hashes.put(url, hash);
+			_aliases.remove(url);
+			return null;
+		}
+
+		Alias alias = _aliases.get(url);
+		if (alias == null || !alias.owner.equals(owner)) {
+			alias = new Alias(owner);
+			_aliases.put(url, alias);
+		} else {
+			// seen with the same bytes before.
+			alias.confirmed = true;
+		}
+		alias.expires = SystemClock.elapsedRealtime() + _aliasTimeToLive;
+		return owner;
+	}
+
+	/**
+	 * The URL a URL shares its bytes with, or the URL itself if it shares
+	 * them with none or the alias expired.
+	 */
+	synchronized String resolve(String url) {
+		Alias alias = _aliases.get(url);
+		if (alias == null
+				|| alias.expires <= SystemClock.elapsedRealtime()) {
+			return url;
+		}
+		return alias.owner;
+	}
+
+	/**
+	 * Whether a URL was found to share its bytes with the same URL more than
+	 * once, so its own copies are no longer needed.
+	 */
+	synchronized boolean isConfirmed(String url) {
+		Alias alias = _aliases.get(url);
+		return alias != null && alias.confirmed;
+	}
+
+	/**
+	 * Amount of URLs currently cached and downloaded under another.
+	 */
+	synchronized int getAliasCount() {
+		long now = SystemClock.elapsedRealtime();
+		int count = 0;
+		for (Alias alias : _aliases.values()) {
+			if (alias.expires > now) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	synchronized void clear() {
+		_owners.clear();
+		_hashes.clear();
+		_aliases.clear();
+	}
+}
@@ -0,0 +1,176 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.ninja.examples.utility.images;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Images as they were downloaded, still encoded, bounded by its own byte
+ * budget. An encoded image is a fraction of the size of its decoded bitmap,
+ * so many more fit in the same memory; one that left the decoded cache is
+ * decoded again from here without reading the disk or the network. The
+ * least recently used images are evicted first.
+ * 
+ * The arrays are kept as they are put in, callers must not change them.
+ */
+public class EncodedMemoryCache {
+
+	/**
+	 * Largest share of the budget one image may take, bigger ones would push
+	 * out too many others.
+	 */
+	private static final int MAX_ENTRY_FRACTION = 8;
+
+	/**
+	 * Access ordered, the eldest is the least recently used. Guarded by this.
+	 */
+	private final LinkedHashMap<String, byte[]> _map = new LinkedHashMap<String, byte[]>(
+			16, .75F, true);
+
+	private long _maxSize;
+	private long _size = 0;
+	private long _hitCount = 0;
+	private long _missCount = 0;
+	private long _evictionCount = 0;
+
+	/**
+	 * @param maxSize
+	 *            - Maximum amount of bytes the encoded images may take.
+	 */
+	public EncodedMemoryCache(long maxSize) {
+		_maxSize = maxSize;
+	}
+
+	public synchronized byte[] get(String key) {
+		byte[] bytes = key == null ? null : _map.get(key);
+		if (bytes != null) {
+			_hitCount++;
+		} else {
+			_missCount++;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Whether a key is cached, without counting as a hit or miss or making
+	 * the entry more recently used.
+	 */
+	public synchronized boolean contains(String key) {
+		return key != null && _map.containsKey(key);
+	}
+
+	/**
+	 * Caches an encoded image, then evicts until the cache is back under
+	 * budget.
+	 * 
+	 * @return false if the image takes too big a share of the budget to be
+	 *         cached.
+	 */
+	public synchronized boolean put(String key, byte[] bytes) {
+		if (key == null || bytes == null || !fits(bytes.length)) {
+			return false;
+		}
+
+		byte[] previous = _map.put(key, bytes);
+		_size += bytes.length;
+		if (previous != null) {
+			_size -= previous.length;
+		}
+		trimToSize(_maxSize);
+		return true;
+	}
+
+	/**
+	 * Whether an image of this many bytes would be cached.
+	 */
+	public synchronized boolean fits(long length) {
+		return length > 0 && length <= _maxSize / MAX_ENTRY_FRACTION;
+	}
+
+	public synchronized byte[] remove(String key) {
+		byte[] previous = key == null ? null : _map.remove(key);
+		if (previous != null) {
+			_size -= previous.length;
+		}
+		return previous;
+	}
+
+	/**
+	 * Removes every image, these don't count as evictions.
+	 */
+	public synchronized void clear() {
+		_map.clear();
+		_size = 0;
+	}
+
+	/**
+	 * Evicts the least recently used images until the cache holds no more
+	 * than maxSize bytes.
+	 */
+	public synchronized void trimToSize(long maxSize) {
+		Iterator<Map.Entry<String, byte[]>> eldest = _map.entrySet()
+				.iterator();
+		while (_size > maxSize && eldest.hasNext()) {
+			_size -= eldest.next().getValue().length;
+			eldest.remove();
+			_evictionCount++;
+		}
+	}
+
+	/**
+	 * Changes the budget, evicting straight away if it shrank.
+	 */
+	public synchronized void setMaxSize(long maxSize) {
+		_maxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	public synchronized long getMaxSize() {
+		return _maxSize;
+	}
+
+	/**
+	 * Amount of bytes currently cached.
+	 */
+	public synchronized long getSize() {
+		return _size;
+	}
+
+	/**
+	 * Amount of images currently cached.
+	 */
+	public synchronized int getCount() {
+		return _map.size();
+	}
+
+	public synchronized long getHitCount() {
+		return _hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return _missCount;
+	}
+
+	/**
+	 * Amount of images removed to stay under budget.
+	 */
+	public synchronized long getEvictionCount() {
+		return _evictionCount;
+	}
+}
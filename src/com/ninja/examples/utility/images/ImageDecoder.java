@@ -0,0 +1,265 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.ninja.examples.utility.images;
+
+import java.lang.reflect.Field;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * Decodes images no bigger than they are going to be shown. The bounds are
+ * read first, then the image is decoded subsampled by the largest power of
+ * two that still covers the requested size.
+ */
+public final class ImageDecoder {
+
+	/**
+	 * Size of the pooled buffers, also what BitmapFactory would allocate for
+	 * its own temporary storage on every decode.
+	 */
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	/**
+	 * Buffers shared by every decode and download, at most one or two per
+	 * thread are ever in use.
+	 */
+	static final ByteArrayPool BUFFER_POOL = new ByteArrayPool(BUFFER_SIZE, 8);
+
+	/**
+	 * BitmapFactory.Options.inBitmap and inMutable, API 11.
+	 */
+	private static final Field IN_BITMAP = getOptionField("inBitmap");
+	private static final Field IN_MUTABLE = getOptionField("inMutable");
+
+	private ImageDecoder() {
+	}
+
+	/**
+	 * Largest power of two the image can be divided by while both sides stay
+	 * at or above the requested size.
+	 * 
+	 * @param targetSize
+	 *            - longest side needed, 0 or less for the full image.
+	 */
+	public static int calculateInSampleSize(int width, int height,
+			int targetSize) {
+		int inSampleSize = 1;
+		if (targetSize <= 0 || width <= 0 || height <= 0) {
+			return inSampleSize;
+		}
+
+		int longestSide = Math.max(width, height);
+		while (longestSide / (inSampleSize * 2) >= targetSize) {
+			inSampleSize *= 2;
+		}
+		return inSampleSize;
+	}
+
+	/**
+	 * @param targetSize
+	 *            - longest side needed, 0 or less for the full image.
+	 */
+	public static Bitmap decodeByteArray(byte[] bytes, int targetSize) {
+		return decodeByteArray(bytes, targetSize, null);
+	}
+
+	/**
+	 * Same as decodeByteArray(byte[], int), drawing into a bitmap from the
+	 * pool if there is one that fits.
+	 * 
+	 * @param pool
+	 *            - Bitmaps to reuse, null to always allocate.
+	 */
+	public static Bitmap decodeByteArray(final byte[] bytes, int targetSize,
+			BitmapPool pool) {
+		return decode(new Source() {
+			Bitmap decode(BitmapFactory.Options options) {
+				return BitmapFactory.decodeByteArray(bytes, 0, bytes.length,
+						options);
+			}
+		}, targetSize, pool);
+	}
+
+	/**
+	 * @param targetSize
+	 *            - longest side needed, 0 or less for the full image.
+	 */
+	public static Bitmap decodeFile(String path, int targetSize) {
+		return decodeFile(path, targetSize, null);
+	}
+
+	/**
+	 * Same as decodeFile(String, int), drawing into a bitmap from the pool if
+	 * there is one that fits.
+	 * 
+	 * @param pool
+	 *            - Bitmaps to reuse, null to always allocate.
+	 */
+	public static Bitmap decodeFile(final String path, int targetSize,
+			BitmapPool pool) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inTempStorage = BUFFER_POOL.acquire();
+		try {
+			return decode(new Source() {
+				Bitmap decode(BitmapFactory.Options options) {
+					return BitmapFactory.decodeFile(path, options);
+				}
+			}, targetSize, pool, options);
+		} finally {
+			BUFFER_POOL.release(options.inTempStorage);
+		}
+	}
+
+	/**
+	 * Draws a smaller copy of an already decoded image, so a thumbnail
+	 * doesn't need the encoded image decoded again. Never scales up.
+	 * 
+	 * @param targetSize
+	 *            - longest side of the copy.
+	 * @param pool
+	 *            - Bitmaps to draw into, null to always allocate.
+	 */
+	public static Bitmap scale(Bitmap source, int targetSize, BitmapPool pool) {
+		int width = source.getWidth();
+		int height = source.getHeight();
+		int longestSide = Math.max(width, height);
+		if (targetSize > 0 && targetSize < longestSide) {
+			float scale = targetSize / (float) longestSide;
+			width = Math.max(1, Math.round(width * scale));
+			height = Math.max(1, Math.round(height * scale));
+		}
+
+		Bitmap.Config config = source.getConfig() != null ? source.getConfig()
+				: Bitmap.Config.ARGB_8888;
+		Bitmap target = pool != null ? pool.get(width, height, config) : null;
+		if (target == null) {
+			target = Bitmap.createBitmap(width, height, config);
+		} else {
+			target.eraseColor(Color.TRANSPARENT);
+		}
+
+		new Canvas(target).drawBitmap(source, null, new Rect(0, 0, width,
+				height), new Paint(Paint.FILTER_BITMAP_FLAG));
+		return target;
+	}
+
+	/**
+	 * Encoded image that can be decoded more than once.
+	 */
+	private static abstract class Source {
+		abstract Bitmap decode(BitmapFactory.Options options);
+	}
+
+	private static Bitmap decode(Source source, int targetSize, BitmapPool pool) {
+		return decode(source, targetSize, pool, new BitmapFactory.Options());
+	}
+
+	/*
+	 * Reads the bounds if the image is subsampled or may reuse a pooled
+	 * bitmap, then decodes. A pooled bitmap the decoder turns down goes back
+	 * to the pool and the image is decoded into a new one.
+	 */
+	private static Bitmap decode(Source source, int targetSize,
+			BitmapPool pool, BitmapFactory.Options options) {
+		boolean reuse = pool != null && IN_BITMAP != null;
+		if (targetSize > 0 || reuse) {
+			options.inJustDecodeBounds = true;
+			source.decode(options);
+
+			options.inSampleSize = calculateInSampleSize(options.outWidth,
+					options.outHeight, targetSize);
+			options.inJustDecodeBounds = false;
+		}
+
+		Bitmap candidate = null;
+		if (reuse) {
+			// mutable, so this one can be reused in turn.
+			setOption(IN_MUTABLE, options, Boolean.TRUE);
+			candidate = takeReusable(options, pool);
+		}
+
+		Bitmap bitmap;
+		try {
+			bitmap = source.decode(options);
+		} catch (IllegalArgumentException e) {
+			if (candidate == null) {
+				throw e;
+			}
+			setOption(IN_BITMAP, options, null);
+			pool.put(candidate);
+			return source.decode(options);
+		}
+
+		if (candidate != null && bitmap != candidate) {
+			pool.put(candidate);
+		}
+		return bitmap;
+	}
+
+	/*
+	 * Finds a pooled bitmap the decoded image will fit in exactly and hands
+	 * it to the decoder.
+	 */
+	private static Bitmap takeReusable(BitmapFactory.Options options,
+			BitmapPool pool) {
+		int sampleSize = Math.max(1, options.inSampleSize);
+		if (options.outWidth <= 0 || options.outHeight <= 0
+				|| (sampleSize > 1 && !BitmapPool.isSubsampledReuseSupported())) {
+			return null;
+		}
+
+		int width = (options.outWidth + sampleSize - 1) / sampleSize;
+		int height = (options.outHeight + sampleSize - 1) / sampleSize;
+		Bitmap candidate = pool.get(width, height, Bitmap.Config.ARGB_8888);
+		if (candidate != null) {
+			setOption(IN_BITMAP, options, candidate);
+		}
+		return candidate;
+	}
+
+	/*
+	 * BitmapFactory.Options fields this SDK doesn't have yet, null on
+	 * devices that don't have them either.
+	 */
+	private static Field getOptionField(String name) {
+		if (!BitmapPool.isReuseSupported()) {
+			return null;
+		}
+		try {
+			return BitmapFactory.Options.class.getField(name);
+		} catch (NoSuchFieldException e) {
+			return null;
+		}
+	}
+
+	private static void setOption(Field field, BitmapFactory.Options options,
+			Object value) {
+		if (field == null) {
+			return;
+		}
+		try {
+			field.set(options, value);
+		} catch (IllegalAccessException e) {
+			// public field, can't happen.
+		}
+	}
+}
@@ -0,0 +1,642 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.ninja.examples.utility.images;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * A size bounded cache of files on disk, used to keep the encoded bytes of
+ * downloaded images across restarts.
+ *
+ * Every change is written to a journal before it is trusted. A file is
+ * written under a temporary name and only renamed into place once it is
+ * complete, so a crash never leaves a half written image behind. When the
+ * cache is opened the journal is replayed, anything that was still being
+ * written is thrown away, and the least recently used files are evicted
+ * until the cache is back under budget.
+ *
+ * Journal lines look like:
+ *
+ * <pre>
+ * DIRTY 3400330d1dfc7f3f7f4b8d4d803dfcf6
+ * CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 832
+ * READ 3400330d1dfc7f3f7f4b8d4d803dfcf6
+ * REMOVE 3400330d1dfc7f3f7f4b8d4d803dfcf6
+ * </pre>
+ */
+public final class ImageDiskCache {
+
+	private static final String TAG = "ImageDiskCache";
+
+	private static final String JOURNAL_FILE = "journal";
+	private static final String JOURNAL_FILE_TMP = "journal.tmp";
+	private static final String MAGIC = "com.ninja.examples.ImageDiskCache";
+	private static final String VERSION = "1";
+
+	private static final String CLEAN = "CLEAN";
+	private static final String DIRTY = "DIRTY";
+	private static final String REMOVE = "REMOVE";
+	private static final String READ = "READ";
+
+	private static final String TMP_SUFFIX = ".tmp";
+
+	/**
+	 * Once the journal holds this many lines that no longer describe an entry,
+	 * it is rewritten from scratch.
+	 */
+	private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+	private final File _directory;
+	private final File _journalFile;
+	private final File _journalFileTmp;
+	private long _maxSize;
+	private long _size = 0;
+	private Writer _journalWriter;
+	private int _redundantOpCount;
+
+	/**
+	 * Entries in access order, the first one is the least recently used.
+	 */
+	private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(
+			0, .75F, true);
+
+	private long _hitCount;
+	private long _missCount;
+	private long _evictionCount;
+
+	private ImageDiskCache(File directory, long maxSize) {
+		_directory = directory;
+		_maxSize = maxSize;
+		_journalFile = new File(directory, JOURNAL_FILE);
+		_journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+	}
+
+	/**
+	 * Opens the cache in a directory, replaying its journal if there is one.
+	 *
+	 * @param directory
+	 *            - A directory this cache owns, anything else inside it may be
+	 *            deleted.
+	 * @param maxSize
+	 *            - Maximum amount of bytes the files may take.
+	 */
+	public static ImageDiskCache open(File directory, long maxSize)
+			throws IOException {
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Unable to create " + directory);
+		}
+
+		ImageDiskCache cache = new ImageDiskCache(directory, maxSize);
+		if (cache._journalFile.exists()) {
+			try {
+				boolean torn = cache.readJournal();
+				cache.deleteUntrackedFiles();
+				if (torn) {
+					// appending after a torn line would hide what follows it.
+					cache.rebuildJournal();
+				} else {
+					cache._journalWriter = new BufferedWriter(
+							new OutputStreamWriter(new FileOutputStream(
+									cache._journalFile, true), "US-ASCII"));
+				}
+				cache.trimToSize();
+				return cache;
+			} catch (IOException e) {
+				Log.w(TAG, "Journal is corrupt, starting over: " + e);
+				cache.deleteContents();
+				cache._entries.clear();
+				cache._size = 0;
+			}
+		}
+
+		cache.rebuildJournal();
+		cache.deleteUntrackedFiles();
+		return cache;
+	}
+
+	/**
+	 * Turns any URL into a name safe to use as a key and as a file name.
+	 */
+	public static String keyFor(String url) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] hash = digest.digest(url.getBytes("UTF-8"));
+			StringBuilder builder = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+				builder.append(Character.forDigit(b & 0xf, 16));
+			}
+			return builder.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return String.valueOf(url.hashCode());
+		} catch (IOException e) {
+			return String.valueOf(url.hashCode());
+		}
+	}
+
+	/**
+	 * Returns the file for a key if it is completely written, or null.
+	 */
+	public synchronized File get(String key) throws IOException {
+		checkNotClosed();
+		Entry entry = _entries.get(key);
+		if (entry == null || !entry.readable) {
+			_missCount++;
+			return null;
+		}
+
+		File file = entry.getCleanFile();
+		if (!file.exists()) {
+			// deleted behind our back, forget about it.
+			removeEntry(entry);
+			_missCount++;
+			return null;
+		}
+
+		_hitCount++;
+		_redundantOpCount++;
+		_journalWriter.write(READ + ' ' + key + '\n');
+		if (journalRebuildRequired()) {
+			rebuildJournal();
+		}
+		return file;
+	}
+
+	/**
+	 * Starts writing the file for a key, or returns null if another edit of
+	 * the same key is already in progress.
+	 */
+	public synchronized Editor edit(String key) throws IOException {
+		checkNotClosed();
+		validateKey(key);
+		Entry entry = _entries.get(key);
+		if (entry == null) {
+			entry = new Entry(key);
+			_entries.put(key, entry);
+		} else if (entry.currentEditor != null) {
+			return null;
+		}
+
+		Editor editor = new Editor(entry);
+		entry.currentEditor = editor;
+
+		// flush before creating the file so a crash can clean it up.
+		_journalWriter.write(DIRTY + ' ' + key + '\n');
+		_journalWriter.flush();
+		return editor;
+	}
+
+	/**
+	 * Removes the file for a key, unless it is being written.
+	 */
+	public synchronized boolean remove(String key) throws IOException {
+		checkNotClosed();
+		Entry entry = _entries.get(key);
+		if (entry == null || entry.currentEditor != null) {
+			return false;
+		}
+		removeEntry(entry);
+		return true;
+	}
+
+	/**
+	 * Changes the budget, evicting straight away if it shrank.
+	 */
+	public synchronized void setMaxSize(long maxSize) throws IOException {
+		_maxSize = maxSize;
+		trimToSize();
+	}
+
+	public synchronized long getMaxSize() {
+		return _maxSize;
+	}
+
+	/**
+	 * Amount of bytes currently cached.
+	 */
+	public synchronized long getSize() {
+		return _size;
+	}
+
+	public synchronized long getHitCount() {
+		return _hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return _missCount;
+	}
+
+	/**
+	 * Amount of files removed to stay under budget.
+	 */
+	public synchronized long getEvictionCount() {
+		return _evictionCount;
+	}
+
+	public synchronized void flush() throws IOException {
+		checkNotClosed();
+		trimToSize();
+		_journalWriter.flush();
+	}
+
+	public synchronized boolean isClosed() {
+		return _journalWriter == null;
+	}
+
+	public synchronized void close() throws IOException {
+		if (_journalWriter == null) {
+			return;
+		}
+		for (Entry entry : new ArrayList<Entry>(_entries.values())) {
+			if (entry.currentEditor != null) {
+				entry.currentEditor.abort();
+			}
+		}
+		trimToSize();
+		_journalWriter.close();
+		_journalWriter = null;
+	}
+
+	/**
+	 * Closes the cache and deletes every file it holds.
+	 */
+	public synchronized void delete() throws IOException {
+		close();
+		deleteContents();
+	}
+
+	/**
+	 * Replays the journal into memory.
+	 * 
+	 * @return true if the journal ended in a torn line.
+	 */
+	private boolean readJournal() throws IOException {
+		boolean torn = false;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(_journalFile), "US-ASCII"));
+		try {
+			String magic = reader.readLine();
+			String version = reader.readLine();
+			String blank = reader.readLine();
+			if (!MAGIC.equals(magic) || !VERSION.equals(version)
+					|| !"".equals(blank)) {
+				throw new IOException("Unexpected journal header: " + magic
+						+ ", " + version);
+			}
+
+			int lineCount = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!readJournalLine(line)) {
+					// a torn line from a crash, everything before it is fine.
+					Log.w(TAG, "Ignoring torn journal line: " + line);
+					torn = true;
+					break;
+				}
+				lineCount++;
+			}
+			_redundantOpCount = lineCount - _entries.size();
+		} finally {
+			reader.close();
+		}
+
+		// anything still dirty was being written when the process died.
+		Iterator<Entry> i = _entries.values().iterator();
+		while (i.hasNext()) {
+			Entry entry = i.next();
+			if (entry.currentEditor != null) {
+				entry.currentEditor = null;
+				entry.getDirtyFile().delete();
+				torn = true;
+			}
+			if (entry.readable) {
+				_size += entry.length;
+			} else {
+				i.remove();
+			}
+		}
+		return torn;
+	}
+
+	private boolean readJournalLine(String line) {
+		String[] parts = line.split(" ");
+		if (parts.length < 2) {
+			return false;
+		}
+
+		String key = parts[1];
+		if (parts[0].equals(REMOVE) && parts.length == 2) {
+			_entries.remove(key);
+			return true;
+		}
+
+		Entry entry = _entries.get(key);
+		if (entry == null) {
+			entry = new Entry(key);
+			_entries.put(key, entry);
+		}
+
+		if (parts[0].equals(CLEAN) && parts.length == 3) {
+			try {
+				entry.length = Long.parseLong(parts[2]);
+			} catch (NumberFormatException e) {
+				return false;
+			}
+			entry.readable = true;
+			entry.currentEditor = null;
+		} else if (parts[0].equals(DIRTY) && parts.length == 2) {
+			entry.currentEditor = new Editor(entry);
+		} else if (parts[0].equals(READ) && parts.length == 2) {
+			// the get() above already moved it to the end.
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Deletes files in the directory the journal knows nothing about, such as
+	 * temporary files left behind by a crash.
+	 */
+	private void deleteUntrackedFiles() {
+		File[] files = _directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (name.equals(JOURNAL_FILE) || name.equals(JOURNAL_FILE_TMP)) {
+				continue;
+			}
+			Entry entry = _entries.get(name);
+			if (entry == null || !entry.readable) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Writes a journal with only the current entries, replacing the old one
+	 * in a single rename.
+	 */
+	private synchronized void rebuildJournal() throws IOException {
+		if (_journalWriter != null) {
+			_journalWriter.close();
+		}
+
+		Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(_journalFileTmp), "US-ASCII"));
+		try {
+			writer.write(MAGIC + '\n');
+			writer.write(VERSION + '\n');
+			writer.write('\n');
+			for (Entry entry : _entries.values()) {
+				if (entry.currentEditor != null) {
+					writer.write(DIRTY + ' ' + entry.key + '\n');
+				} else {
+					writer.write(CLEAN + ' ' + entry.key + ' ' + entry.length
+							+ '\n');
+				}
+			}
+		} finally {
+			writer.close();
+		}
+
+		if (!_journalFileTmp.renameTo(_journalFile)) {
+			throw new IOException("Unable to replace journal");
+		}
+		_journalWriter = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(_journalFile, true), "US-ASCII"));
+		_redundantOpCount = 0;
+	}
+
+	private boolean journalRebuildRequired() {
+		return _redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+				&& _redundantOpCount >= _entries.size();
+	}
+
+	private synchronized void completeEdit(Editor editor, boolean success)
+			throws IOException {
+		Entry entry = editor.entry;
+		if (entry.currentEditor != editor) {
+			throw new IllegalStateException("Edit is no longer current");
+		}
+
+		File dirty = entry.getDirtyFile();
+		File clean = entry.getCleanFile();
+		if (success && dirty.exists()) {
+			long oldLength = entry.readable ? entry.length : 0;
+			if (clean.exists() && !clean.delete()) {
+				throw new IOException("Unable to replace " + clean);
+			}
+			if (!dirty.renameTo(clean)) {
+				throw new IOException("Unable to rename " + dirty);
+			}
+			entry.length = clean.length();
+			_size += entry.length - oldLength;
+			entry.readable = true;
+		} else {
+			dirty.delete();
+			success = false;
+		}
+
+		_redundantOpCount++;
+		entry.currentEditor = null;
+		if (success || entry.readable) {
+			_journalWriter.write(CLEAN + ' ' + entry.key + ' ' + entry.length
+					+ '\n');
+		} else {
+			_entries.remove(entry.key);
+			_journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+		}
+		_journalWriter.flush();
+
+		trimToSize();
+		if (journalRebuildRequired()) {
+			rebuildJournal();
+		}
+	}
+
+	private void removeEntry(Entry entry) throws IOException {
+		File file = entry.getCleanFile();
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Unable to delete " + file);
+		}
+		if (entry.readable) {
+			_size -= entry.length;
+		}
+		_entries.remove(entry.key);
+		_redundantOpCount++;
+		_journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+	}
+
+	private void trimToSize() throws IOException {
+		Iterator<Map.Entry<String, Entry>> i = _entries.entrySet().iterator();
+		while (_size > _maxSize && i.hasNext()) {
+			Entry entry = i.next().getValue();
+			if (entry.currentEditor != null || !entry.readable) {
+				continue;
+			}
+			entry.getCleanFile().delete();
+			_size -= entry.length;
+			i.remove();
+			_evictionCount++;
+			_redundantOpCount++;
+			_journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+		}
+	}
+
+	private void deleteContents() {
+		File[] files = _directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	private void checkNotClosed() {
+		if (_journalWriter == null) {
+			throw new IllegalStateException("cache is closed");
+		}
+	}
+
+	private static void validateKey(String key) {
+		if (key == null || key.length() == 0 || key.length() > 64
+				|| !key.matches("[a-z0-9_-]+")) {
+			throw new IllegalArgumentException("Invalid key: " + key);
+		}
+	}
+
+	/**
+	 * Writes the file for one entry. Call commit() once every byte is written
+	 * or abort() to throw the partial file away.
+	 */
+	public final class Editor {
+		private final Entry entry;
+		private boolean hasErrors;
+		private boolean done;
+
+		private Editor(Entry entry) {
+			this.entry = entry;
+		}
+
+		/**
+		 * Stream to the temporary file, nothing is visible to get() until
+		 * commit().
+		 */
+		public OutputStream newOutputStream() throws IOException {
+			return new FilterOutputStream(new FileOutputStream(
+					entry.getDirtyFile())) {
+				@Override
+				public void write(int oneByte) throws IOException {
+					try {
+						out.write(oneByte);
+					} catch (IOException e) {
+						hasErrors = true;
+						throw e;
+					}
+				}
+
+				@Override
+				public void write(byte[] buffer, int offset, int length)
+						throws IOException {
+					try {
+						out.write(buffer, offset, length);
+					} catch (IOException e) {
+						hasErrors = true;
+						throw e;
+					}
+				}
+
+				@Override
+				public void close() throws IOException {
+					try {
+						out.close();
+					} catch (IOException e) {
+						hasErrors = true;
+						throw e;
+					}
+				}
+			};
+		}
+
+		/**
+		 * The temporary file, for callers that want to read back what they
+		 * wrote before committing.
+		 */
+		public File getFile() {
+			return entry.getDirtyFile();
+		}
+
+		/**
+		 * Atomically moves the file into place.
+		 */
+		public void commit() throws IOException {
+			if (done) {
+				return;
+			}
+			done = true;
+			completeEdit(this, !hasErrors);
+		}
+
+		public void abort() throws IOException {
+			if (done) {
+				return;
+			}
+			done = true;
+			completeEdit(this, false);
+		}
+	}
+
+	private final class Entry {
+		private final String key;
+		private long length;
+		private boolean readable;
+		private Editor currentEditor;
+
+		private Entry(String key) {
+			this.key = key;
+		}
+
+		File getCleanFile() {
+			return new File(_directory, key);
+		}
+
+		File getDirtyFile() {
+			return new File(_directory, key + TMP_SUFFIX);
+		}
+	}
+}
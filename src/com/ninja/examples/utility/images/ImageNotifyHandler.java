@@ -16,15 +16,48 @@ Copyright 2011 Ryan Mattison
 
 package com.ninja.examples.utility.images;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 
 public class ImageNotifyHandler extends Handler {
+
+	/**
+	 * Batches are delivered at most once per frame.
+	 */
+	private static final long FRAME_INTERVAL = 16;
+
+	/**
+	 * Message carrying one finished URL.
+	 */
+	private static final int MSG_IMAGE = 0;
+
+	/**
+	 * Message telling the handler to deliver what it gathered.
+	 */
+	private static final int MSG_FLUSH = 1;
+
 	private final OnImageUpdateListener _onImageUpdate;
 
+	/**
+	 * URLs finished since the last batch, in the order they finished.
+	 */
+	private final LinkedHashSet<String> _pendingUrls = new LinkedHashSet<String>();
+
+	private boolean _flushScheduled = false;
+	private long _lastFlushTime = 0;
+
 	/**
 	 * Initializes a new instance of the ImageNotifyHandler class.
 	 * 
+	 * If the listener is an OnImageBatchUpdateListener, images that finish
+	 * close together are gathered and handed over as one batch at most once
+	 * per frame.
+	 * 
 	 * @param onImageUpdateListener
 	 *            The onImageUpdate delegate to call back when this handler it
 	 *            sent a message.
@@ -33,8 +66,44 @@ public class ImageNotifyHandler extends Handler {
 		_onImageUpdate = onImageUpdateListener;
 	}
 
+	/**
+	 * Lets the listener know an image finished, called from any thread.
+	 */
+	public void notifyImage(String remoteImageUrl) {
+		if (!(_onImageUpdate instanceof OnImageBatchUpdateListener)) {
+			// from the message pool, one per image adds up in a long list.
+			sendMessage(obtainMessage(MSG_IMAGE, remoteImageUrl));
+			return;
+		}
+
+		synchronized (_pendingUrls) {
+			_pendingUrls.add(remoteImageUrl);
+			if (_flushScheduled) {
+				return;
+			}
+			_flushScheduled = true;
+			long now = SystemClock.uptimeMillis();
+			sendEmptyMessageAtTime(MSG_FLUSH,
+					Math.max(now, _lastFlushTime + FRAME_INTERVAL));
+		}
+	}
+
 	@Override
 	public void handleMessage(Message msg) {
+		if (msg.what == MSG_FLUSH) {
+			List<String> batch;
+			synchronized (_pendingUrls) {
+				batch = new ArrayList<String>(_pendingUrls);
+				_pendingUrls.clear();
+				_flushScheduled = false;
+				_lastFlushTime = SystemClock.uptimeMillis();
+			}
+			if (!batch.isEmpty()) {
+				((OnImageBatchUpdateListener) _onImageUpdate)
+						.onImageBatchUpdate(batch);
+			}
+			return;
+		}
 		_onImageUpdate.onImageUpdate((String) msg.obj);
 	}
 
@@ -42,4 +111,12 @@ public class ImageNotifyHandler extends Handler {
 		void onImageUpdate(String remoteImageUrl);
 	}
 
+	/**
+	 * Gets every image that finished within a frame in one call, so one
+	 * refresh can cover them all.
+	 */
+	public interface OnImageBatchUpdateListener extends OnImageUpdateListener {
+		void onImageBatchUpdate(List<String> remoteImageUrls);
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,222 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.ninja.examples.utility.images;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.os.SystemClock;
+
+/**
+ * Watches a list scroll and loads the images of the rows about to come on
+ * screen before they are bound. The faster the list moves the further ahead
+ * it looks, the busier the network the less it asks for, and when the list
+ * reverses direction whatever it asked for ahead is dropped.
+ */
+public class ImagePrefetcher {
+
+	/**
+	 * Rows looked ahead even when the list barely moves.
+	 */
+	private static final int MIN_PREFETCH = 2;
+
+	/**
+	 * Most rows ever looked ahead.
+	 */
+	private static final int MAX_PREFETCH = 20;
+
+	/**
+	 * How far ahead in time to look, at the observed speed.
+	 */
+	private static final long LOOKAHEAD_MILLIS = 750;
+
+	/**
+	 * Amount of waiting requests at which the network counts as busy, the
+	 * look ahead shrinks in proportion past this.
+	 */
+	private static final int BUSY_QUEUE_DEPTH = 6;
+
+	/**
+	 * Weight of the newest speed sample in the moving average.
+	 */
+	private static final float SPEED_SMOOTHING = .3F;
+
+	/**
+	 * Where the images come from.
+	 */
+	public interface Source {
+		/**
+		 * Image URL of a row, or null if it has none.
+		 */
+		String getImageUrl(int position);
+
+		int getCount();
+	}
+
+	private final Source _source;
+	private final int _width;
+	private final int _height;
+	private final String _activityName;
+
+	private int _lastFirstVisible = -1;
+	private long _lastScrollTime;
+
+	/**
+	 * Rows per second, smoothed.
+	 */
+	private float _speed;
+
+	/**
+	 * 1 scrolling down, -1 scrolling up.
+	 */
+	private int _direction = 1;
+
+	/**
+	 * Rows prefetched and not yet on screen, by position.
+	 */
+	private final TreeMap<Integer, String> _prefetched = new TreeMap<Integer, String>();
+
+	private long _prefetchCount;
+
+	/**
+	 * @param width
+	 *            - Width in pixels the rows show the images at, 0 for full.
+	 * @param height
+	 *            - Height in pixels the rows show the images at, 0 for full.
+	 * @param activityName
+	 *            - Same Group or Activity the rows load their images with.
+	 */
+	public ImagePrefetcher(Source source, int width, int height,
+			String activityName) {
+		_source = source;
+		_width = width;
+		_height = height;
+		_activityName = activityName;
+	}
+
+	/**
+	 * Call from OnScrollListener.onScroll, on the UI thread.
+	 */
+	public void onScroll(int firstVisibleItem, int visibleItemCount) {
+		long now = SystemClock.uptimeMillis();
+		if (_lastFirstVisible >= 0 && firstVisibleItem != _lastFirstVisible) {
+			int moved = firstVisibleItem - _lastFirstVisible;
+			long elapsed = Math.max(1, now - _lastScrollTime);
+			float sample = Math.abs(moved) * 1000F / elapsed;
+			_speed += (sample - _speed) * SPEED_SMOOTHING;
+
+			int direction = moved > 0 ? 1 : -1;
+			if (direction != _direction) {
+				_direction = direction;
+				cancelAll();
+			}
+		} else if (firstVisibleItem == _lastFirstVisible) {
+			return;
+		}
+		_lastFirstVisible = firstVisibleItem;
+		_lastScrollTime = now;
+
+		int lastVisibleItem = firstVisibleItem + visibleItemCount - 1;
+		forgetVisible(firstVisibleItem, lastVisibleItem);
+		prefetch(_direction > 0 ? lastVisibleItem + 1 : firstVisibleItem - 1);
+	}
+
+	/**
+	 * Drops every prefetch still waiting, such as when the list goes away.
+	 */
+	public void cancelAll() {
+		for (Map.Entry<Integer, String> entry : _prefetched.entrySet()) {
+			ImageProvider.cancelPrefetch(entry.getValue(), _width, _height);
+		}
+		_prefetched.clear();
+	}
+
+	/**
+	 * Amount of rows looked ahead at the current speed and network load.
+	 */
+	public int getLookahead() {
+		int lookahead = MIN_PREFETCH
+				+ (int) (_speed * LOOKAHEAD_MILLIS / 1000F);
+		int pending = ImageProvider.getUnresolvedCount();
+		if (pending > BUSY_QUEUE_DEPTH) {
+			lookahead = lookahead * BUSY_QUEUE_DEPTH / pending;
+		}
+		return Math.max(1, Math.min(MAX_PREFETCH, lookahead));
+	}
+
+	/**
+	 * Rows per second, smoothed.
+	 */
+	public float getSpeed() {
+		return _speed;
+	}
+
+	/**
+	 * Amount of images this prefetcher queued.
+	 */
+	public long getPrefetchCount() {
+		return _prefetchCount;
+	}
+
+	private void prefetch(int start) {
+		int count = _source.getCount();
+		int lookahead = getLookahead();
+		ArrayList<Integer> wanted = new ArrayList<Integer>(lookahead);
+		for (int i = 0; i < lookahead; i++) {
+			int position = start + i * _direction;
+			if (position < 0 || position >= count) {
+				break;
+			}
+			wanted.add(position);
+		}
+
+		// what scrolled out of the look ahead is no longer worth loading.
+		Iterator<Map.Entry<Integer, String>> i = _prefetched.entrySet()
+				.iterator();
+		while (i.hasNext()) {
+			Map.Entry<Integer, String> entry = i.next();
+			if (!wanted.contains(entry.getKey())) {
+				ImageProvider.cancelPrefetch(entry.getValue(), _width, _height);
+				i.remove();
+			}
+		}
+
+		for (Integer position : wanted) {
+			if (_prefetched.containsKey(position)) {
+				continue;
+			}
+			String url = _source.getImageUrl(position);
+			if (url != null && url.length() > 0
+					&& ImageProvider.prefetch(url, _width, _height,
+							_activityName)) {
+				_prefetched.put(position, url);
+				_prefetchCount++;
+			}
+		}
+	}
+
+	/*
+	 * Rows on screen are bound now, their requests belong to the rows.
+	 */
+	private void forgetVisible(int first, int last) {
+		if (last >= first) {
+			_prefetched.subMap(first, last + 1).clear();
+		}
+	}
+}
@@ -16,447 +16,3583 @@
 
 package com.ninja.examples.utility.images;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.UnknownHostException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.os.Message;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.media.ExifInterface;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
+import android.widget.ImageView;
 
 import com.ninja.examples.R;
 import com.ninja.examples.utility.Globals;
 import com.ninja.examples.utility.net.APIRequest;
+import com.ninja.examples.utility.net.HostCircuitBreaker;
+import com.ninja.examples.utility.net.RetryPolicy;
+import com.ninja.examples.utility.net.UrlCanonicalizer;
 
 public final class ImageProvider {
 
 	/**
-	 * The first time this static class is called, it'll load up all it needs.
-	 * If it is still in memory, it won't execute this method.
+	 * Priority of images fetched ahead of time, before anyone asked for them.
 	 */
-	static {
-		ImageProvider.initialize();
+	public static final int PRIORITY_PREFETCH = -1;
+
+	/**
+	 * Priority of images that are off screen.
+	 */
+	public static final int PRIORITY_LOW = 0;
+
+	/**
+	 * Priority every request starts with.
+	 */
+	public static final int PRIORITY_NORMAL = 1;
+
+	/**
+	 * Priority of images on screen right now.
+	 */
+	public static final int PRIORITY_VISIBLE = 2;
+
+	/**
+	 * Levels passed to onTrimMemory(int), the same values as the
+	 * ComponentCallbacks2 constants of API 14, which API 8 doesn't have.
+	 */
+	public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+	public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+	public static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+	public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+	public static final int TRIM_MEMORY_BACKGROUND = 40;
+	public static final int TRIM_MEMORY_MODERATE = 60;
+	public static final int TRIM_MEMORY_COMPLETE = 80;
+
+	private static final String TAG = "ImageProvider";
+
+	/**
+	 * Stages reported to an OnStartupListener.
+	 */
+	public static final String STARTUP_WORKERS = "workers";
+	public static final String STARTUP_PLACEHOLDERS = "placeholders";
+
+	/**
+	 * Color shown until the placeholder images are decoded.
+	 */
+	public static final int PLACEHOLDER_COLOR = 0xFFE0E0E0;
+
+	/**
+	 * Image to load if web service isn't complete, decoded off the UI thread
+	 * by preloadPlaceholders().
+	 */
+	private static volatile Bitmap _loadingImage;
+
+	/**
+	 * Image to load if the image doesn't exist or bad URL, decoded off the
+	 * UI thread by preloadPlaceholders().
+	 */
+	private static volatile Bitmap _comingSoonImage;
+
+	/**
+	 * Image to load in place of large loading images, decoded off the UI
+	 * thread by preloadPlaceholders().
+	 */
+	private static volatile Bitmap _largeLoadingImage;
+
+	/**
+	 * Handed out in place of a placeholder image that isn't decoded yet, a
+	 * single pixel of PLACEHOLDER_COLOR. Guarded by a lock of its own, the UI
+	 * thread asks for it.
+	 */
+	private static final Object _standInLock = new Object();
+	private static Bitmap _standInImage;
+
+	/**
+	 * Set while the placeholder thread is decoding.
+	 */
+	private static final AtomicBoolean _decodingPlaceholders = new AtomicBoolean();
+
+	/**
+	 * Whether the workers are running, they start with the first request.
+	 */
+	private static volatile boolean _started;
+
+	/**
+	 * Milliseconds it took to start the workers and to decode the
+	 * placeholder images, 0 until they did.
+	 */
+	private static volatile long _workerStartTime;
+	private static volatile long _placeholderDecodeTime;
+
+	private static volatile OnStartupListener _startupListener;
+
+	/**
+	 * Download workers kept even when there is nothing to download.
+	 */
+	private static final int DEFAULT_MIN_DOWNLOAD_WORKERS = 1;
+
+	/**
+	 * Most download workers running at once, added while the queue backs up
+	 * or downloads are slow.
+	 */
+	private static final int DEFAULT_MAX_DOWNLOAD_WORKERS = 6;
+
+	/**
+	 * Most downloads from the same host running at once, no more than
+	 * APIRequest keeps connections per host.
+	 */
+	private static final int DEFAULT_MAX_DOWNLOADS_PER_HOST = 4;
+
+	/**
+	 * How long a download worker above the minimum may sit idle.
+	 */
+	private static final long DOWNLOAD_WORKER_KEEP_ALIVE = 30 * 1000;
+
+	/**
+	 * Download worker limits the pool starts with, see
+	 * setDownloadWorkerLimits(int, int) and setMaxDownloadsPerHost(int).
+	 */
+	private static volatile int _minDownloadWorkers = DEFAULT_MIN_DOWNLOAD_WORKERS;
+	private static volatile int _maxDownloadWorkers = DEFAULT_MAX_DOWNLOAD_WORKERS;
+	private static volatile int _maxDownloadsPerHost = DEFAULT_MAX_DOWNLOADS_PER_HOST;
+
+	/**
+	 * Largest size bucket looked for in memory to scale a smaller one down
+	 * from, beyond that only the full size image is.
+	 */
+	private static final int MAX_DERIVE_BUCKET = 2048;
+
+	/**
+	 * Smallest size bucket that gets a preview while it downloads, full size
+	 * requests always do.
+	 */
+	private static final int PROGRESSIVE_MIN_BUCKET = 512;
+
+	/**
+	 * Downloads smaller than this arrive quickly enough without a preview.
+	 */
+	private static final long PROGRESSIVE_MIN_BYTES = 128 * 1024;
+
+	/**
+	 * Bytes to wait for before looking for an EXIF thumbnail, which is near
+	 * the start of the file.
+	 */
+	private static final long EXIF_SCAN_BYTES = 64 * 1024;
+
+	/**
+	 * Bytes to wait for before subsampling a partial download of unknown
+	 * length, otherwise half of it is waited for.
+	 */
+	private static final long PARTIAL_PREVIEW_BYTES = 256 * 1024;
+
+	/**
+	 * Longest side of a preview.
+	 */
+	private static final int PREVIEW_SIZE = 256;
+
+	/**
+	 * Which type of threads to run
+	 */
+	private static final boolean EXIT_THREADS_UPON_APPLICATION_EXIT = true;
+
+	/**
+	 * A queue of URLs to be downloaded that blocks. While in a thread looping,
+	 * it'll wait until it is fed to iterate. Visible and recently requested
+	 * images are handed out first.
+	 */
+	private static ImageRequestQueue _downloadQueue = new ImageRequestQueue();
+
+	/**
+	 * URLs that missed the memory cache, waiting to be looked up on disk. Disk
+	 * hits never wait behind the network downloads.
+	 */
+	private static ImageRequestQueue _diskQueue = new ImageRequestQueue();
+
+	/**
+	 * Encoded images from disk or network waiting to be decoded. Bounded, a
+	 * full queue holds the disk and download threads back until the decode
+	 * threads catch up. Not while paused, see _parkedJobs.
+	 */
+	private static final int DECODE_QUEUE_CAPACITY = 8;
+	private static ArrayBlockingQueue<DecodeJob> _decodeQueue = new ArrayBlockingQueue<DecodeJob>(
+			DECODE_QUEUE_CAPACITY);
+
+	/**
+	 * Threads decoding images, as many as there are cores.
+	 */
+	private static DecodeThread[] _decodeThreads = null;
+
+	/**
+	 * Work each stage finished.
+	 */
+	private static final StageMeter _diskMeter = new StageMeter();
+	private static final StageMeter _downloadMeter = new StageMeter();
+	private static final StageMeter _decodeMeter = new StageMeter();
+
+	/**
+	 * Images scaled down from a larger size already in memory, and images
+	 * read from disk, neither needed the network.
+	 */
+	private static final AtomicLong _derivedCount = new AtomicLong();
+	private static final AtomicLong _diskHitCount = new AtomicLong();
+
+	/**
+	 * Maximum amount of bytes the encoded images on disk may take by default.
+	 */
+	private static final long DEFAULT_DISK_CACHE_SIZE = 10 * 1024 * 1024;
+
+	/**
+	 * Maximum amount of bytes the small images packed into slabs may take by
+	 * default, on top of the disk cache.
+	 */
+	private static final long DEFAULT_SLAB_STORE_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Most URLs the negative cache remembers.
+	 */
+	private static final int NEGATIVE_CACHE_SIZE = 500;
+
+	/**
+	 * File inside the application cache directory keeping the negative
+	 * cache. Not inside the disk cache folder, which only keeps its own
+	 * files.
+	 */
+	private static final String NEGATIVE_CACHE_FILE = "image-failures";
+
+	/**
+	 * Folder inside the application cache directory holding the disk cache.
+	 */
+	private static final String DISK_CACHE_DIRECTORY = "images";
+
+	/**
+	 * Encoded images kept across restarts and clear(), opened by the disk
+	 * thread the first time it is needed. Guarded by _diskCacheLock, which is
+	 * held while the journal is replayed, so nothing the UI thread waits on
+	 * takes it.
+	 */
+	private static final Object _diskCacheLock = new Object();
+	private static volatile ImageDiskCache _diskCache;
+
+	private static long _diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+
+	/**
+	 * Folder inside the application cache directory holding the slabs.
+	 */
+	private static final String SLAB_STORE_DIRECTORY = "image-slabs";
+
+	/**
+	 * Small encoded images kept across restarts, packed into a few slab
+	 * files instead of a file each. Opened by the disk thread the first time
+	 * it is needed. Guarded by _slabStoreLock, held while every slab is read.
+	 */
+	private static final Object _slabStoreLock = new Object();
+	private static volatile SlabStore _slabStore;
+
+	private static long _slabStoreSize = DEFAULT_SLAB_STORE_SIZE;
+
+	/**
+	 * Thread that looks up URLs on disk before they are handed to the download
+	 * threads.
+	 */
+	private static DiskThread _diskThread = null;
+
+	/**
+	 * Requests waiting on disk or network, keyed by URL and size bucket. Each
+	 * holds the activities subscribed to it, the action will occur when the
+	 * image is finished downloading.
+	 */
+	private static ConcurrentHashMap<String, ImageRequest> _pendingRequests = new ConcurrentHashMap<String, ImageRequest>();
+
+	/**
+	 * Amount of pending requests of each URL, whatever their size, kept by
+	 * putPending() and removePending().
+	 */
+	private static final ConcurrentHashMap<String, Integer> _pendingUrls = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Bulk prefetch requests on their way, keyed by URL. They aren't pending,
+	 * nobody waits for their bitmap, but a request for the same URL follows
+	 * one instead of downloading the image a second time.
+	 */
+	private static final ConcurrentHashMap<String, ImageRequest> _bulkRequests = new ConcurrentHashMap<String, ImageRequest>();
+
+	/**
+	 * Fraction of the maximum heap the decoded images may take by default.
+	 */
+	private static final float DEFAULT_MEMORY_CACHE_FRACTION = .125F;
+
+	/**
+	 * Decoded images, bounded by the bytes they hold. Once the budget is used
+	 * up the least recently used images are evicted, no matter what the
+	 * garbage collector thinks of the URL strings used as keys.
+	 */
+	private static BitmapLruCache _imageCache = new BitmapLruCache(
+			BitmapLruCache.getHeapFractionSize(DEFAULT_MEMORY_CACHE_FRACTION)) {
+		@Override
+		protected void entryRemoved(boolean evicted, String key,
+				Bitmap oldValue) {
+			recycleIfUnused(oldValue);
+		}
+	};
+
+	/**
+	 * Fraction of the maximum heap the encoded images may take by default.
+	 */
+	private static final float DEFAULT_ENCODED_CACHE_FRACTION = .0625F;
+
+	/**
+	 * Images as downloaded, keyed by URL as every size decodes from the same
+	 * bytes. Images that left the decoded cache are decoded from here again
+	 * without going to disk.
+	 */
+	private static final EncodedMemoryCache _encodedCache = new EncodedMemoryCache(
+			BitmapLruCache.getHeapFractionSize(DEFAULT_ENCODED_CACHE_FRACTION));
+
+	/**
+	 * Fraction of the maximum heap the pooled bitmaps may take by default.
+	 */
+	private static final float DEFAULT_BITMAP_POOL_FRACTION = .03125F;
+
+	/**
+	 * Bitmaps that left the memory cache and aren't shown or held by anyone,
+	 * decoded into again instead of allocating new ones.
+	 */
+	private static final BitmapPool _bitmapPool = new BitmapPool(
+			BitmapLruCache.getHeapFractionSize(DEFAULT_BITMAP_POOL_FRACTION));
+
+	/**
+	 * Guards what it takes to tell whether a bitmap is still in use: what
+	 * each view was last given, which bitmaps are on their way to a view,
+	 * which were handed to callers the provider can't follow, and which left
+	 * the cache while still in use.
+	 */
+	private static final Object _poolLock = new Object();
+	private static final WeakHashMap<ImageView, Bitmap> _displayed = new WeakHashMap<ImageView, Bitmap>();
+
+	/**
+	 * Amount of views in _displayed showing each bitmap, so telling whether
+	 * one is shown doesn't walk every view. A view that is garbage collected
+	 * leaves its bitmap counted, it is then never pooled, only collected.
+	 */
+	private static final WeakHashMap<Bitmap, Integer> _displayCounts = new WeakHashMap<Bitmap, Integer>();
+	private static final WeakHashMap<Bitmap, Boolean> _inFlight = new WeakHashMap<Bitmap, Boolean>();
+	private static final WeakHashMap<Bitmap, Boolean> _handedOut = new WeakHashMap<Bitmap, Boolean>();
+	private static final WeakHashMap<Bitmap, Boolean> _evictedInUse = new WeakHashMap<Bitmap, Boolean>();
+
+	/**
+	 * The request each view made last, so it can be cancelled once the view
+	 * is recycled for another image. Weak keys, a view that is gone no longer
+	 * holds anything.
+	 */
+	private static Map<ImageView, ImageRequestHandle> _targets = Collections
+			.synchronizedMap(new WeakHashMap<ImageView, ImageRequestHandle>());
+
+	/**
+	 * Sets finished images into their views on the UI thread.
+	 */
+	private static final Handler _mainHandler = new Handler(
+			Looper.getMainLooper());
+
+	/**
+	 * Downloads that never happened, or were aborted, because every view that
+	 * wanted them was recycled.
+	 */
+	private static final AtomicLong _cancelledDownloadCount = new AtomicLong();
+
+	/**
+	 * Times a view asked for an image, and how many of those times the image
+	 * was already in memory.
+	 */
+	private static final AtomicLong _bindCount = new AtomicLong();
+	private static final AtomicLong _bindHitCount = new AtomicLong();
+
+	/**
+	 * While paused, such as during a fling, downloads carry on but nothing is
+	 * decoded or delivered. Guards _paused, _heldDeliveries and _parkedJobs.
+	 */
+	private static final Object _pauseLock = new Object();
+	private static boolean _paused = false;
+
+	/**
+	 * Images finished while paused, delivered together on resume.
+	 */
+	private static ArrayList<Delivery> _heldDeliveries = new ArrayList<Delivery>();
+
+	/**
+	 * Encoded images that arrived while paused, parked here rather than in
+	 * the bounded decode queue, so the disk and download threads never wait
+	 * on decode threads that are held back. Decoded first on resume.
+	 */
+	private static final LinkedList<DecodeJob> _parkedJobs = new LinkedList<DecodeJob>();
+
+	/**
+	 * Decode downloads as they arrive instead of reading the whole response
+	 * into memory first.
+	 */
+	private static volatile boolean _streamingDecode = true;
+
+	/**
+	 * Show large images at a low resolution while they download.
+	 */
+	private static volatile boolean _progressiveLoading = true;
+
+	/**
+	 * Previews of large images still downloading, keyed like the memory
+	 * cache. Dropped once the image is delivered, fails or is cancelled.
+	 */
+	private static final ConcurrentHashMap<String, Bitmap> _previews = new ConcurrentHashMap<String, Bitmap>();
+
+	private static final AtomicLong _previewCount = new AtomicLong();
+
+	/**
+	 * URLs that couldn't be downloaded, even after retrying.
+	 */
+	private static ConcurrentHashMap<String, Boolean> _failedUrls = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * URLs that failed lately, answered with the coming soon image without
+	 * going to the network. Kept in a file next to the disk cache, which the
+	 * disk thread reads the first time it runs.
+	 */
+	private static final NegativeCache _negativeCache = new NegativeCache(
+			NEGATIVE_CACHE_SIZE);
+
+	/**
+	 * How often and how soon failed downloads are tried again.
+	 */
+	private static volatile RetryPolicy _retryPolicy = new RetryPolicy();
+
+	/**
+	 * Failed downloads waiting to be tried again, moved back on the download
+	 * queue by the retry thread once they are due.
+	 */
+	private static DelayQueue<RetryEntry> _retryQueue = new DelayQueue<RetryEntry>();
+
+	private static RetryThread _retryThread = null;
+
+	private static final AtomicLong _retryCount = new AtomicLong();
+
+	/**
+	 * Turns every spelling of a URL into one before it is looked up, null
+	 * to take URLs as they are.
+	 */
+	private static volatile UrlCanonicalizer _urlCanonicalizer = new UrlCanonicalizer();
+
+	/**
+	 * Payloads downloaded so far by their hash, so URLs serving the same bytes
+	 * share one cache entry. A URL is checked again an hour after it was
+	 * found to be a duplicate.
+	 */
+	private static final int CONTENT_INDEX_SIZE = 1000;
+	private static final long ALIAS_TIME_TO_LIVE = 60 * 60 * 1000;
+	private static final ContentHashIndex _contentIndex = new ContentHashIndex(
+			CONTENT_INDEX_SIZE, ALIAS_TIME_TO_LIVE);
+
+	/**
+	 * Downloads whose bytes were already cached under another URL, and how
+	 * many encoded bytes those were.
+	 */
+	private static final AtomicLong _duplicateCount = new AtomicLong();
+	private static final AtomicLong _duplicateBytes = new AtomicLong();
+
+	/**
+	 * Hosts that keep failing, downloads from them fail fast for a while.
+	 */
+	private static final HostCircuitBreaker _circuitBreaker = new HostCircuitBreaker();
+
+	/**
+	 * Workers taking URLs off the download queue. If one is in the middle of
+	 * downloading another will grab the next available URL and begin the
+	 * process.
+	 */
+	private static ImageWorkerPool _downloadPool = null;
+
+	/**
+	 * Open scopes by name, guarded by itself. An image asked for by a Group
+	 * or Activity whose scope is open stays cached until every scope asking
+	 * for it is closed.
+	 */
+	private static final HashMap<String, Scope> _scopes = new HashMap<String, Scope>();
+
+	/**
+	 * Told how long each stage of starting up took, see
+	 * setOnStartupListener(OnStartupListener).
+	 */
+	public interface OnStartupListener {
+
+		/**
+		 * Called on whichever thread finished the stage.
+		 * 
+		 * @param stage
+		 *            - STARTUP_WORKERS or STARTUP_PLACEHOLDERS.
+		 * @param millis
+		 *            - How long the stage took.
+		 */
+		void onStartup(String stage, long millis);
+	}
+
+	/**
+	 * Starts the download workers, the disk thread and the decode threads
+	 * right away, dropping whatever was pending. Optional, they start with
+	 * the first request anyway, so nothing is paid for while the
+	 * application starts.
+	 */
+	public static void initialize() {
+		_pendingRequests.clear();
+		_pendingUrls.clear();
+		_bulkRequests.clear();
+		start();
+	}
+
+	/*
+	 * Starts the workers unless they are running, cheap once they are.
+	 */
+	private static void ensureStarted() {
+		if (!_started) {
+			start();
+		}
+	}
+
+	private static void start() {
+		long begin = SystemClock.uptimeMillis();
+		synchronized (ImageProvider.class) {
+			if (_downloadPool == null || _downloadPool.isShutdown()) {
+				_downloadPool = new ImageWorkerPool("Download Thread",
+						_downloadQueue, new Downloader(APIRequest.getClient()),
+						_minDownloadWorkers, _maxDownloadWorkers,
+						_maxDownloadsPerHost, DOWNLOAD_WORKER_KEEP_ALIVE);
+			}
+			_downloadPool.prestart();
+
+			if (_diskThread == null || !_diskThread.isAlive()) {
+				_diskThread = new DiskThread("Disk Thread");
+				_diskThread.start();
+			}
+
+			if (_retryThread == null || !_retryThread.isAlive()) {
+				_retryThread = new RetryThread("Retry Thread");
+				_retryThread.start();
+			}
+
+			if (_decodeThreads == null) {
+				int cores = Math.max(1, Runtime.getRuntime()
+						.availableProcessors());
+				_decodeThreads = new DecodeThread[cores];
+				for (int i = 0; i < cores; i++) {
+					_decodeThreads[i] = new DecodeThread("Decode Thread: " + i);
+					_decodeThreads[i].start();
+				}
+			}
+
+			if (_started) {
+				return;
+			}
+			_started = true;
+		}
+
+		_workerStartTime = SystemClock.uptimeMillis() - begin;
+		reportStartup(STARTUP_WORKERS, _workerStartTime);
+		preloadPlaceholders();
+	}
+
+	private static void reportStartup(String stage, long millis) {
+		Log.i(TAG, "Started " + stage + " in " + millis + "ms");
+		OnStartupListener listener = _startupListener;
+		if (listener != null) {
+			listener.onStartup(stage, millis);
+		}
+	}
+
+	/**
+	 * Listens for how long starting the workers and decoding the placeholder
+	 * images took, null to stop.
+	 */
+	public static void setOnStartupListener(OnStartupListener listener) {
+		_startupListener = listener;
+	}
+
+	/**
+	 * Milliseconds it took to start the workers, 0 if they haven't started.
+	 */
+	public static long getWorkerStartTime() {
+		return _workerStartTime;
+	}
+
+	/**
+	 * Milliseconds it took to decode the placeholder images, 0 if they
+	 * haven't been decoded.
+	 */
+	public static long getPlaceholderDecodeTime() {
+		return _placeholderDecodeTime;
+	}
+
+	/**
+	 * Whether the workers are running.
+	 */
+	public static boolean isStarted() {
+		return _started;
+	}
+
+	/**
+	 * Stops the download workers, the disk thread and the decode threads and
+	 * aborts whatever is downloading. Queued requests are dropped. The next
+	 * request starts everything again.
+	 */
+	public static void shutdown() {
+		synchronized (ImageProvider.class) {
+			_started = false;
+			if (_downloadPool != null) {
+				_downloadPool.shutdown();
+			}
+			if (_diskThread != null) {
+				_diskThread.interrupt();
+				_diskThread = null;
+			}
+			if (_retryThread != null) {
+				_retryThread.interrupt();
+				_retryThread = null;
+			}
+			if (_decodeThreads != null) {
+				for (DecodeThread thread : _decodeThreads) {
+					thread.interrupt();
+				}
+				_decodeThreads = null;
+			}
+		}
+		for (ImageRequest request : _pendingRequests.values()) {
+			cancelRequest(request);
+		}
+		_bulkRequests.clear();
+		_diskQueue.clear();
+		_downloadQueue.clear();
+		_decodeQueue.clear();
+		_retryQueue.clear();
+		synchronized (_pauseLock) {
+			_parkedJobs.clear();
+		}
+	}
+
+	/**
+	 * Changes how many download workers may run. Workers are added up to the
+	 * maximum while the queue backs up or downloads are slow, and leave again
+	 * once they are idle for a while, down to the minimum.
+	 */
+	public static void setDownloadWorkerLimits(int minWorkers, int maxWorkers) {
+		synchronized (ImageProvider.class) {
+			_minDownloadWorkers = minWorkers;
+			_maxDownloadWorkers = maxWorkers;
+			if (_downloadPool != null) {
+				_downloadPool.setLimits(minWorkers, maxWorkers);
+			}
+		}
+	}
+
+	/**
+	 * Changes how many downloads from the same host may run at once. More
+	 * than APIRequest keeps connections per host only makes workers wait on a
+	 * connection.
+	 */
+	public static void setMaxDownloadsPerHost(int maxPerHost) {
+		synchronized (ImageProvider.class) {
+			_maxDownloadsPerHost = maxPerHost;
+			if (_downloadPool != null) {
+				_downloadPool.setMaxPerHost(maxPerHost);
+			}
+		}
+	}
+
+	/**
+	 * Amount of download workers running, busy or idle.
+	 */
+	public static int getDownloadWorkerCount() {
+		ImageWorkerPool pool = _downloadPool;
+		return pool == null ? 0 : pool.getWorkerCount();
+	}
+
+	/**
+	 * Average time in milliseconds a download spent on the network, recent
+	 * ones weigh most.
+	 */
+	public static long getDownloadLatency() {
+		ImageWorkerPool pool = _downloadPool;
+		return pool == null ? 0 : pool.getLatency();
+	}
+
+	/*
+	 * Hands a request that missed the disk over to the download workers.
+	 */
+	private static void queueDownload(ImageRequest request) {
+		_downloadQueue.put(request);
+		ImageWorkerPool pool = _downloadPool;
+		if (pool != null) {
+			pool.onQueued();
+		}
+	}
+
+	/**
+	 * Decodes the placeholder images on a background thread, unless they are
+	 * decoded or being decoded. Call it as the application starts so they
+	 * are ready by the time the first list shows; until then the getters
+	 * hand out a stand-in of PLACEHOLDER_COLOR.
+	 */
+	public static void preloadPlaceholders() {
+		if (_loadingImage != null && _largeLoadingImage != null
+				&& _comingSoonImage != null) {
+			return;
+		}
+		if (Globals.getInstance().getContext() == null
+				|| !_decodingPlaceholders.compareAndSet(false, true)) {
+			return;
+		}
+
+		Thread thread = new Thread("Placeholder Thread") {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				long begin = SystemClock.uptimeMillis();
+				try {
+					Resources resources = Globals.getInstance().getContext()
+							.getResources();
+					if (_loadingImage == null) {
+						_loadingImage = BitmapFactory.decodeResource(
+								resources, R.drawable.loading);
+					}
+					if (_largeLoadingImage == null) {
+						_largeLoadingImage = BitmapFactory.decodeResource(
+								resources, R.drawable.loading_big);
+					}
+					if (_comingSoonImage == null) {
+						_comingSoonImage = BitmapFactory.decodeResource(
+								resources, R.drawable.comingsoonoff);
+					}
+				} catch (OutOfMemoryError e) {
+					Log.e(TAG, "Out of memory decoding placeholders", e);
+					return;
+				} finally {
+					_decodingPlaceholders.set(false);
+				}
+				_placeholderDecodeTime = SystemClock.uptimeMillis() - begin;
+				reportStartup(STARTUP_PLACEHOLDERS, _placeholderDecodeTime);
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*
+	 * The image if it is decoded, otherwise the stand-in, while the
+	 * placeholders decode in the background.
+	 */
+	private static Bitmap placeholder(Bitmap image) {
+		if (image != null) {
+			return image;
+		}
+		preloadPlaceholders();
+		synchronized (_standInLock) {
+			if (_standInImage == null) {
+				_standInImage = Bitmap.createBitmap(1, 1, Bitmap.Config.RGB_565);
+				_standInImage.eraseColor(PLACEHOLDER_COLOR);
+			}
+			return _standInImage;
+		}
+	}
+
+	/*
+	 * The image as a drawable if it is decoded, otherwise a plain color that
+	 * costs nothing to draw.
+	 */
+	private static Drawable placeholderDrawable(Bitmap image) {
+		if (image != null) {
+			// decoded from the resources, so there is a context.
+			return new BitmapDrawable(Globals.getInstance().getContext()
+					.getResources(), image);
+		}
+		preloadPlaceholders();
+		return new ColorDrawable(PLACEHOLDER_COLOR);
+	}
+
+	/**
+	 * An outside method can decide if this will be used, but cached as it may
+	 * be used a lot. Other loading images can also be used.
+	 * 
+	 * @return default loading image, or a stand-in of PLACEHOLDER_COLOR
+	 *         while it is decoding.
+	 */
+	public static Bitmap getLoadingImage() {
+		return placeholder(_loadingImage);
+	}
+
+	/**
+	 * An outside method can decide if this will be used, but cached as it may
+	 * be used a lot. Other loading images can also be used.
+	 * 
+	 * @return large loading image, or a stand-in of PLACEHOLDER_COLOR while
+	 *         it is decoding.
+	 */
+	public static Bitmap getLargeLoadingImage() {
+		return placeholder(_largeLoadingImage);
+	}
+
+	/**
+	 * An outside method can decide if this will be used, but cached as it may
+	 * be used a lot. Other placeholder images can also be used.
+	 * 
+	 * @return placeholder image, or a stand-in of PLACEHOLDER_COLOR while it
+	 *         is decoding.
+	 */
+	public static Bitmap getComingSoonImage() {
+		return placeholder(_comingSoonImage);
+	}
+
+	/**
+	 * Same as getLoadingImage(), as a drawable that is a plain
+	 * PLACEHOLDER_COLOR while the image is decoding.
+	 */
+	public static Drawable getLoadingDrawable() {
+		return placeholderDrawable(_loadingImage);
+	}
+
+	/**
+	 * Same as getLargeLoadingImage(), as a drawable that is a plain
+	 * PLACEHOLDER_COLOR while the image is decoding.
+	 */
+	public static Drawable getLargeLoadingDrawable() {
+		return placeholderDrawable(_largeLoadingImage);
+	}
+
+	/**
+	 * Same as getComingSoonImage(), as a drawable that is a plain
+	 * PLACEHOLDER_COLOR while the image is decoding.
+	 */
+	public static Drawable getComingSoonDrawable() {
+		return placeholderDrawable(_comingSoonImage);
+	}
+
+	/**
+	 * Queues a bitmap for download if it isn't already downloaded, the threads
+	 * will fire up and download. If an image is downloaded it'll return. This
+	 * takes a ImageNotify handler that'll execute when the image is finished
+	 * downloading.
+	 * 
+	 * It also takes Activity name. While a scope of that name is open, see
+	 * openScope(String), the image stays cached, and it is only cancelled
+	 * when the last scope that asked for it closes.
+	 * 
+	 * @param remoteImageUrl
+	 *            - URL to download.
+	 * @param handler
+	 *            - Action to happen once URL is downloaded.
+	 * @param activityName
+	 *            - Group or Activity that is currently downloading.
+	 * @return Bitmap that's downloaded.
+	 */
+	public static Bitmap getBitmap(String remoteImageUrl,
+			ImageNotifyHandler handler, String activityName) {
+		return getBitmap(remoteImageUrl, 0, 0, handler, activityName);
+	}
+
+	/**
+	 * Same as getBitmap(String, ImageNotifyHandler, String), but the image is
+	 * decoded no bigger than it is going to be shown. Each size bucket is
+	 * cached on its own, so a thumbnail and the full image of the same URL
+	 * don't replace each other.
+	 * 
+	 * @param remoteImageUrl
+	 *            - URL to download.
+	 * @param width
+	 *            - Width in pixels the image is shown at, 0 for full size.
+	 * @param height
+	 *            - Height in pixels the image is shown at, 0 for full size.
+	 * @param handler
+	 *            - Action to happen once URL is downloaded.
+	 * @param activityName
+	 *            - Group or Activity that is currently downloading.
+	 * @return Bitmap that's downloaded.
+	 */
+	public static Bitmap getBitmap(String remoteImageUrl, int width,
+			int height, ImageNotifyHandler handler, String activityName) {
+		return getBitmap(null, remoteImageUrl, width, height, handler,
+				activityName);
+	}
+
+	/**
+	 * Same as getBitmap(String, int, int, ImageNotifyHandler, String), for an
+	 * ImageView that gets recycled, such as one in a ListView row. Whatever
+	 * the view asked for before is cancelled when it asks for another image;
+	 * if no other view or caller wants that image it is dropped from the
+	 * queue, or aborted if it is already downloading.
+	 * 
+	 * Must be called from the UI thread.
+	 * 
+	 * @param target
+	 *            - View the image is going to be shown in.
+	 */
+	public static Bitmap getBitmap(ImageView target, String remoteImageUrl,
+			int width, int height, ImageNotifyHandler handler,
+			String activityName) {
+		return load(target, false, remoteImageUrl, width, height, handler,
+				activityName);
+	}
+
+	/*
+	 * Returns the cached image, or queues it.
+	 * 
+	 * @param direct - set the image into the target once it's ready.
+	 */
+	private static Bitmap load(ImageView target, boolean direct,
+			String remoteImageUrl, int width, int height,
+			ImageNotifyHandler handler, String activityName) {
+
+		remoteImageUrl = resolveUrl(remoteImageUrl);
+		String key = ImageRequest.getKey(remoteImageUrl, width, height);
+		reference(activityName, key, target);
+
+		if (target != null) {
+			ImageRequestHandle previous = _targets.get(target);
+			if (previous != null && !previous.getKey().equals(key)) {
+				previous.cancel();
+				_targets.remove(target);
+			}
+		}
+
+		Bitmap bitmap = claimCached(key, _imageCache.get(key), target, direct);
+		if (target != null) {
+			_bindCount.incrementAndGet();
+		}
+		if (bitmap != null) {
+			if (target != null) {
+				_bindHitCount.incrementAndGet();
+				_targets.remove(target);
+			}
+			return bitmap;
+		}
+
+		if (_negativeCache.contains(remoteImageUrl)) {
+			// failed lately, don't even queue it.
+			if (target != null) {
+				_targets.remove(target);
+			}
+			return getComingSoonImage();
+		}
+
+		while (true) {
+			ImageRequest request = _pendingRequests.get(key);
+			if (request == null) {
+				ImageRequest created = new ImageRequest(remoteImageUrl, width,
+						height);
+				if (handler != null) {
+					created.subscriptions.add(handler);
+				}
+				request = putPending(created);
+				if (request == null) {
+					// only the caller that got its request in queues it.
+					bind(target, direct, created);
+					if (!follow(created)) {
+						queue(created);
+					}
+					return null;
+				}
+			}
+
+			if (request.cancelled) {
+				// on its way out, replace it.
+				removePending(request);
+				continue;
+			}
+
+			// asked for again, so it's now the newest request, and a
+			// prefetch someone now waits for is no longer the least important.
+			touch(request, Math.max(request.priority, PRIORITY_NORMAL));
+			if (subscribe(request, handler)) {
+				bind(target, direct, request);
+				return null;
+			}
+
+			// finished in the meantime, already counted as a miss above.
+			bitmap = claimCached(key, _imageCache.peek(key), target, direct);
+			if (bitmap != null) {
+				if (target != null) {
+					_targets.remove(target);
+				}
+				return bitmap;
+			}
+			removePending(request);
+		}
+	}
+
+	/**
+	 * Shows an image in a view without any adapter refresh. A cached image is
+	 * set straight away, otherwise the placeholder is shown and the image is
+	 * set into the view once it's ready, unless the view was recycled for
+	 * another image in the meantime.
+	 * 
+	 * Must be called from the UI thread.
+	 * 
+	 * @param target
+	 *            - View to show the image in.
+	 * @param remoteImageUrl
+	 *            - URL to download.
+	 * @param width
+	 *            - Width in pixels the image is shown at, 0 for full size.
+	 * @param height
+	 *            - Height in pixels the image is shown at, 0 for full size.
+	 * @param placeholder
+	 *            - Shown until the image is ready, such as getLoadingImage().
+	 * @param activityName
+	 *            - Group or Activity that is currently downloading.
+	 */
+	public static void setImage(ImageView target, String remoteImageUrl,
+			int width, int height, Bitmap placeholder, String activityName) {
+		Bitmap bitmap = load(target, true, remoteImageUrl, width, height,
+				null, activityName);
+		Bitmap shown = bitmap != null ? bitmap : placeholder;
+		target.setImageBitmap(shown);
+		markDisplayed(target, shown);
+	}
+
+	/**
+	 * Loads an image into the memory cache before anyone asks for it, at
+	 * PRIORITY_PREFETCH. Once a view or caller asks for it, it loads like any
+	 * other request. The scope of the Group or Activity doesn't keep it
+	 * cached until then, only images views show or callers asked for are.
+	 * 
+	 * @return false if the image is already in memory or on its way.
+	 */
+	public static boolean prefetch(String remoteImageUrl, int width,
+			int height, String activityName) {
+		remoteImageUrl = resolveUrl(remoteImageUrl);
+		String key = ImageRequest.getKey(remoteImageUrl, width, height);
+		if (_imageCache.contains(key) || _negativeCache.contains(remoteImageUrl)) {
+			return false;
+		}
+
+		ImageRequest request = new ImageRequest(remoteImageUrl, width, height);
+		request.priority = PRIORITY_PREFETCH;
+		ImageRequest pending = putPending(request);
+		if (pending != null) {
+			return false;
+		}
+		if (!follow(request)) {
+			queue(request);
+		}
+		return true;
+	}
+
+	/**
+	 * Drops a prefetch, unless a view or caller started waiting for it.
+	 */
+	public static void cancelPrefetch(String remoteImageUrl, int width,
+			int height) {
+		ImageRequest request = _pendingRequests.get(ImageRequest.getKey(
+				resolveUrl(remoteImageUrl), width, height));
+		if (request == null || request.targets.get() > 0
+				|| request.untargeted || !request.subscriptions.isEmpty()) {
+			return;
+		}
+		cancelRequest(request);
+	}
+
+	/**
+	 * Fetches a whole list of images to disk ahead of time, such as every
+	 * image of a data set before it is shown. Nothing is decoded, small
+	 * images also go into the encoded memory cache. Images already on disk,
+	 * or failed lately, aren't fetched again.
+	 * 
+	 * @param remoteImageUrls
+	 *            - URLs to fetch, in the order they are wanted.
+	 * @param maxBytes
+	 *            - Stop once this many bytes are downloaded, 0 for no limit.
+	 * @param maxCount
+	 *            - Only the first this many URLs, 0 for all of them.
+	 * @param priority
+	 *            - Such as PRIORITY_PREFETCH, so images views ask for go
+	 *            first.
+	 * @param timeout
+	 *            - Milliseconds after which whatever is left is cancelled, 0
+	 *            for none.
+	 * @param listener
+	 *            - Told about progress and completion on the UI thread, may be
+	 *            null.
+	 * @return a handle to follow or cancel the prefetch with.
+	 */
+	public static PrefetchHandle prefetchAll(List<String> remoteImageUrls,
+			long maxBytes, int maxCount, int priority, long timeout,
+			PrefetchHandle.OnPrefetchListener listener) {
+		PrefetchHandle handle = new PrefetchHandle(remoteImageUrls, maxBytes,
+				maxCount, priority, listener);
+		handle.start(timeout);
+		return handle;
+	}
+
+	/*
+	 * Queues a request of a bulk prefetch, unless the URL is already on its
+	 * way for someone else. It isn't pending, callers asking for the image
+	 * follow it until it's stored and then load it like any other.
+	 * 
+	 * @return false if the URL is already on its way, nothing was queued.
+	 */
+	static boolean queueBulk(ImageRequest request) {
+		if (_bulkRequests.putIfAbsent(request.url, request) != null) {
+			return false;
+		}
+		// in the map before looking, a caller queueing the URL meanwhile
+		// either shows up here or follows this one. One cancelled before it
+		// got in is done already.
+		if (_pendingUrls.containsKey(request.url) || request.cancelled) {
+			finishBulk(request);
+			return false;
+		}
+		queue(request);
+		return true;
+	}
+
+	/*
+	 * Makes a request pending unless one of its key already is.
+	 * 
+	 * @return the one already pending, or null.
+	 */
+	private static ImageRequest putPending(ImageRequest request) {
+		ImageRequest pending = _pendingRequests.putIfAbsent(request.key,
+				request);
+		if (pending == null) {
+			countPendingUrl(request.url, 1);
+		}
+		return pending;
+	}
+
+	/*
+	 * @return false if the request wasn't pending anymore.
+	 */
+	private static boolean removePending(ImageRequest request) {
+		if (!_pendingRequests.remove(request.key, request)) {
+			return false;
+		}
+		countPendingUrl(request.url, -1);
+		return true;
+	}
+
+	private static void countPendingUrl(String url, int delta) {
+		while (true) {
+			Integer count = _pendingUrls.get(url);
+			if (count == null) {
+				if (delta < 0
+						|| _pendingUrls.putIfAbsent(url, delta) == null) {
+					return;
+				}
+			} else if (count + delta <= 0) {
+				if (_pendingUrls.remove(url, count)) {
+					return;
+				}
+			} else if (_pendingUrls.replace(url, count, count + delta)) {
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Lets a new request wait for a bulk request of the same URL, which is
+	 * then as important as the request, rather than download the image
+	 * twice. Without any lock, the same way as subscribe(): whoever takes the
+	 * follower out of the queue first queues it.
+	 * 
+	 * @return false if the request should be queued by the caller.
+	 */
+	private static boolean follow(ImageRequest request) {
+		ImageRequest bulk = _bulkRequests.get(request.url);
+		if (bulk == null) {
+			return false;
+		}
+		bulk.followers.add(request);
+		if (!bulk.done) {
+			touch(bulk, Math.max(bulk.priority, request.priority));
+			return true;
+		}
+		// the drain already took it, it's being queued.
+		return !bulk.followers.remove(request);
+	}
+
+	/*
+	 * A bulk request was stored, gave up or was cancelled: the next request
+	 * for the URL looks it up again, and those following it are queued to
+	 * find it stored or load it themselves.
+	 */
+	private static void finishBulk(ImageRequest request) {
+		_bulkRequests.remove(request.url, request);
+		_previews.remove(request.key);
+		request.done = true;
+		ImageRequest follower;
+		while ((follower = request.followers.poll()) != null) {
+			queue(follower);
+		}
+	}
+
+	/*
+	 * Hands a new request to the disk thread, starting the workers if this
+	 * is the first one.
+	 */
+	private static void queue(ImageRequest request) {
+		ensureStarted();
+		_diskQueue.put(request);
+	}
+
+	static void cancelBulk(ImageRequest request) {
+		cancelRequest(request);
+		finishBulk(request);
+	}
+
+	/**
+	 * Cancels whatever the view asked for last, see
+	 * getBitmap(ImageView, String, int, int, ImageNotifyHandler, String).
+	 */
+	public static void cancel(ImageView target) {
+		ImageRequestHandle handle = _targets.remove(target);
+		if (handle != null) {
+			handle.cancel();
+		}
+	}
+
+	/**
+	 * The request a view made last, or null if it has its image or never
+	 * asked for one.
+	 */
+	public static ImageRequestHandle getRequestHandle(ImageView target) {
+		return _targets.get(target);
+	}
+
+	/**
+	 * Withdraws one view's interest in an image. Once no view and no plain
+	 * getBitmap caller wants it, the request is cancelled: dropped from the
+	 * queue if it hasn't started, aborted if it is downloading. If plain
+	 * callers still want it, it only loses its priority.
+	 */
+	static void cancel(ImageRequestHandle handle) {
+		if (!handle.markCancelled()) {
+			return;
+		}
+
+		ImageRequest request = handle.request;
+		if (request.targets.decrementAndGet() > 0) {
+			return;
+		}
+		if (_pendingRequests.get(request.key) != request) {
+			// already finished.
+			return;
+		}
+		if (request.untargeted) {
+			touch(request, PRIORITY_LOW);
+			return;
+		}
+
+		cancelRequest(request);
+	}
+
+	/*
+	 * Drops a request from the queues, or aborts its download.
+	 */
+	private static void cancelRequest(ImageRequest request) {
+		request.cancelled = true;
+		if (removePending(request)) {
+			_previews.remove(request.key);
+		}
+		if (_diskQueue.remove(request) || _downloadQueue.remove(request)) {
+			countCancelled(request);
+			return;
+		}
+
+		HttpUriRequest activeGet = request.activeGet;
+		if (activeGet != null) {
+			Log.i(TAG, "Aborting: " + request);
+			activeGet.abort();
+			countCancelled(request);
+		}
+	}
+
+	/**
+	 * Opens a named scope, or opens it once more. Images asked for with the
+	 * scope's name as Group or Activity stay cached while the scope is open,
+	 * images shared by several scopes while any of them is. An image asked
+	 * for by a view only stays cached until the view asks for another one.
+	 * Each call needs a closeScope(String), such as in onCreate and
+	 * onDestroy.
+	 */
+	public static void openScope(String name) {
+		synchronized (_scopes) {
+			Scope scope = _scopes.get(name);
+			if (scope == null) {
+				scope = new Scope();
+				_scopes.put(name, scope);
+			}
+			scope.opens++;
+		}
+	}
+
+	/**
+	 * Closes a scope opened with openScope(String). Once it is closed as
+	 * often as it was opened, the images it asked for may be evicted again,
+	 * and those still loading that no other open scope asked for are
+	 * cancelled.
+	 */
+	public static void closeScope(String name) {
+		ArrayList<String> released = new ArrayList<String>();
+		synchronized (_scopes) {
+			Scope scope = _scopes.get(name);
+			if (scope == null || --scope.opens > 0) {
+				return;
+			}
+			_scopes.remove(name);
+
+			for (String key : scope.keys.keySet()) {
+				_imageCache.unpin(key);
+				if (!isReferenced(key)) {
+					released.add(key);
+				}
+			}
+		}
+		_imageCache.trimToSize(_imageCache.getMaxSize());
+
+		for (String key : released) {
+			ImageRequest request = _pendingRequests.get(key);
+			if (request != null) {
+				Log.i(TAG, "Scope " + name + " closed, cancelling: " + request);
+				cancelRequest(request);
+			}
+		}
+	}
+
+	/**
+	 * Images asked for under one name.
+	 */
+	private static final class Scope {
+		int opens;
+
+		/**
+		 * Each key pinned once, with the amount of views and callers of the
+		 * scope that want it.
+		 */
+		final HashMap<String, Integer> keys = new HashMap<String, Integer>();
+
+		/**
+		 * The key each view of the scope asked for last.
+		 */
+		final WeakHashMap<ImageView, String> views = new WeakHashMap<ImageView, String>();
+
+		/**
+		 * Keys callers without a view asked for, wanted until the scope
+		 * closes.
+		 */
+		final HashSet<String> untargeted = new HashSet<String>();
+
+		void acquire(String key) {
+			Integer count = keys.put(key, 1);
+			if (count == null) {
+				_imageCache.pin(key);
+			} else {
+				keys.put(key, count + 1);
+			}
+		}
+
+		/**
+		 * @return true if nothing in the scope wants the key anymore and it
+		 *         was unpinned.
+		 */
+		boolean release(String key) {
+			Integer count = keys.get(key);
+			if (count == null) {
+				return false;
+			}
+			if (count > 1) {
+				keys.put(key, count - 1);
+				return false;
+			}
+			keys.remove(key);
+			_imageCache.unpin(key);
+			return true;
+		}
+	}
+
+	/*
+	 * Pins an image for the open scope of that name, if there is one. A view
+	 * asking for another image releases the one it asked for before, so a
+	 * scrolling list only pins what its rows show.
+	 */
+	private static void reference(String scopeName, String key,
+			ImageView target) {
+		boolean released = false;
+		synchronized (_scopes) {
+			Scope scope = _scopes.get(scopeName);
+			if (scope == null) {
+				return;
+			}
+			if (target == null) {
+				if (scope.untargeted.add(key)) {
+					scope.acquire(key);
+				}
+				return;
+			}
+			String previous = scope.views.put(target, key);
+			if (key.equals(previous)) {
+				return;
+			}
+			scope.acquire(key);
+			if (previous != null) {
+				released = scope.release(previous);
+			}
+		}
+		if (released) {
+			// went over budget on pinned bitmaps, see unpin(String).
+			_imageCache.trimToSize(_imageCache.getMaxSize());
+		}
+	}
+
+	/*
+	 * Guarded by _scopes.
+	 */
+	private static boolean isReferenced(String key) {
+		for (Scope scope : _scopes.values()) {
+			if (scope.keys.containsKey(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Counts a cancelled request as a download that was saved, only once. A
+	 * cancelled bulk prefetch wasn't saved by recycling and isn't counted.
+	 */
+	private static void countCancelled(ImageRequest request) {
+		if (request.bulk == null && request.markSaved()) {
+			_cancelledDownloadCount.incrementAndGet();
+		}
+	}
+
+	/*
+	 * Adds a handler to a pending request. Without any lock: the handler is
+	 * added before the done flag is read, and notifySubscribers sets the flag
+	 * before draining, so either the drain sees the handler or this sees the
+	 * flag. Seeing the flag, whoever takes the handler out of the queue first
+	 * owns it, the drain notifies it or this hands it back.
+	 * 
+	 * @return false if the request finished in the meantime and the handler
+	 *         won't be notified.
+	 */
+	private static boolean subscribe(ImageRequest request,
+			ImageNotifyHandler handler) {
+		if (handler != null && !request.subscriptions.contains(handler)) {
+			request.subscriptions.add(handler);
+		}
+		if (!request.done) {
+			return true;
+		}
+		// the drain already took it, it's being notified.
+		return handler != null && !request.subscriptions.remove(handler);
+	}
+
+	/*
+	 * Remembers which view wants a request, or that a caller without a view
+	 * does.
+	 */
+	private static void bind(ImageView target, boolean direct,
+			ImageRequest request) {
+		if (target == null) {
+			request.untargeted = true;
+			return;
+		}
+
+		ImageRequestHandle current = _targets.get(target);
+		if (current != null && current.request == request
+				&& !current.isCancelled()) {
+			return;
+		}
+		ImageRequestHandle handle = new ImageRequestHandle(request, target,
+				direct);
+		request.targets.incrementAndGet();
+		request.handles.add(handle);
+		_targets.put(target, handle);
+	}
+
+	/**
+	 * Changes the priority of every size of an image that hasn't started
+	 * loading yet.
+	 * 
+	 * @param priority
+	 *            - PRIORITY_LOW, PRIORITY_NORMAL, PRIORITY_VISIBLE or anything
+	 *            in between, higher loads first.
+	 */
+	public static void setPriority(String remoteImageUrl, int priority) {
+		remoteImageUrl = resolveUrl(remoteImageUrl);
+		for (ImageRequest request : _pendingRequests.values()) {
+			if (request.url.equals(remoteImageUrl)) {
+				touch(request, priority);
+			}
+		}
+	}
+
+	/**
+	 * Tells the provider which images are on screen. Waiting requests for
+	 * these URLs are promoted to PRIORITY_VISIBLE, requests that were visible
+	 * but scrolled away are demoted to PRIORITY_LOW.
+	 */
+	public static void setVisibleUrls(Collection<String> visibleUrls) {
+		HashSet<String> resolved = new HashSet<String>();
+		for (String url : visibleUrls) {
+			resolved.add(resolveUrl(url));
+		}
+		visibleUrls = resolved;
+		_diskQueue.reprioritize(visibleUrls, PRIORITY_VISIBLE, PRIORITY_LOW);
+		_downloadQueue.reprioritize(visibleUrls, PRIORITY_VISIBLE,
+				PRIORITY_LOW);
+	}
+
+	/*
+	 * Re-queues a waiting request with a priority, in whichever queue it
+	 * waits.
+	 */
+	private static void touch(ImageRequest request, int priority) {
+		if (!_diskQueue.setPriority(request, priority)) {
+			_downloadQueue.setPriority(request, priority);
+		}
+	}
+
+	/**
+	 * Looks up URLs in the disk cache. A hit is handed over to the decode
+	 * threads, a miss to the download threads.
+	 */
+	static class DiskThread extends Thread {
+
+		public DiskThread(String name) {
+			super();
+			this.setName(name);
+			this.setDaemon(EXIT_THREADS_UPON_APPLICATION_EXIT);
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+			while (!isInterrupted()) {
+				ImageRequest request = null;
+
+				// this will block until there is an item in the queue
+				try {
+					request = _diskQueue.take();
+
+					if (request != null && request.url != null
+							&& request.url.length() > 0) {
+
+						if (request.cancelled) {
+							countCancelled(request);
+							continue;
+						}
+
+						int failure = getNegativeCache().getFailure(request.url);
+						if (failure >= 0) {
+							// failed lately, possibly before a restart.
+							fail(request, failure);
+							continue;
+						}
+
+						if (request.bulk != null) {
+							if (isStored(request)) {
+								finishBulk(request);
+								request.bulk.onFetched(request, 0);
+							} else {
+								queueDownload(request);
+							}
+							continue;
+						}
+
+						Bitmap source = claimLargerVariant(request);
+						if (source != null) {
+							Log.i(TAG, "Derived: " + request);
+							queueDecode(new DecodeJob(request, source));
+							continue;
+						}
+
+						byte[] encoded = _encodedCache.get(request.url);
+						if (encoded != null) {
+							Log.i(TAG, "Encoded Hit: " + request);
+							queueDecode(new DecodeJob(request, null, encoded,
+									true));
+							continue;
+						}
+
+						byte[] packed = findInSlabs(request);
+						if (packed != null) {
+							Log.i(TAG, "Slab Hit: " + request);
+							_diskMeter.mark();
+							_diskHitCount.incrementAndGet();
+							queueDecode(new DecodeJob(request, null, packed,
+									true));
+							continue;
+						}
+
+						File file = findOnDisk(request);
+						_diskMeter.mark();
+						if (file != null) {
+							Log.i(TAG, "Disk Hit: " + request);
+							_diskHitCount.incrementAndGet();
+							queueDecode(new DecodeJob(request, file, null, true));
+						} else if (request.cancelled) {
+							countCancelled(request);
+						} else {
+							queueDownload(request);
+						}
+					}
+				} catch (InterruptedException e) {
+					// shut down, leave with the flag set.
+					interrupt();
+					return;
+				}
+			}
+		}
+
+		/*
+		 * Whether the encoded image is kept anywhere, without reading it.
+		 */
+		private boolean isStored(ImageRequest request) {
+			if (_encodedCache.contains(request.url)) {
+				return true;
+			}
+			SlabStore slabStore = getSlabStore();
+			if (slabStore != null
+					&& slabStore.contains(ImageDiskCache.keyFor(request.url))) {
+				return true;
+			}
+			return findOnDisk(request) != null;
+		}
+
+		private byte[] findInSlabs(ImageRequest request) {
+			SlabStore slabStore = getSlabStore();
+			if (slabStore == null) {
+				return null;
+			}
+
+			try {
+				return slabStore.get(ImageDiskCache.keyFor(request.url));
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		private File findOnDisk(ImageRequest request) {
+			ImageDiskCache diskCache = getDiskCache();
+			if (diskCache == null) {
+				return null;
+			}
+
+			try {
+				return diskCache.get(ImageDiskCache.keyFor(request.url));
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Performs a GET for each request a download worker takes, in this case
+	 * on an image a lot of these can be running async. The encoded image is
+	 * handed over to the decode threads, a worker never decodes so it is back
+	 * on the network as soon as the response is read.
+	 */
+	static class Downloader implements ImageWorkerPool.Task {
+
+		private final HttpClient httpClient;
+
+		public Downloader(HttpClient httpClient) {
+			this.httpClient = httpClient;
+		}
+
+		/**
+		 * Executes the GetMethod and prints some status information. Returns
+		 * the time spent on the network, handing the image to the decode
+		 * threads afterwards isn't counted.
+		 */
+		public long run(ImageRequest request) {
+
+			if (request.url == null || request.url.length() == 0) {
+				return -1;
+			}
+
+			if (request.cancelled) {
+				countCancelled(request);
+				return -1;
+			}
+
+			if (!_circuitBreaker.allowRequest(request.host)) {
+				// the host keeps failing, don't wait on another timeout. The
+				// URL itself never failed, it's tried again once asked for.
+				Log.i(TAG, "Failing fast: " + request);
+				giveUp(request);
+				return -1;
+			}
+
+			long begin = System.currentTimeMillis();
+			DecodeJob job = null;
+			IOException error = null;
+			boolean malformed = false;
+			try {
+				job = download(request);
+				_circuitBreaker.onSuccess(request.host);
+			} catch (IOException e) {
+				error = e;
+			} catch (RuntimeException e) {
+				// such as a malformed URL, trying again won't help.
+				e.printStackTrace();
+				malformed = true;
+			} finally {
+				_downloadMeter.mark();
+			}
+			long fetchMillis = System.currentTimeMillis() - begin;
+
+			if (error != null) {
+				if (request.cancelled) {
+					return -1;
+				}
+				error.printStackTrace();
+				_circuitBreaker.onFailure(request.host);
+				retry(request, error);
+				return fetchMillis;
+			}
+			if (malformed) {
+				fail(request, NegativeCache.FAILURE_NOT_FOUND);
+				return fetchMillis;
+			}
+
+			Log.i(TAG, "Downloading: " + request);
+			if (request.cancelled) {
+				return -1;
+			}
+			if (job == null) {
+				fail(request, NegativeCache.FAILURE_NOT_FOUND);
+				return fetchMillis;
+			}
+
+			if (request.bulk != null) {
+				fetched(job);
+				return fetchMillis;
+			}
+
+			try {
+				queueDecode(job);
+			} catch (InterruptedException e) {
+				// shutting down, let the worker see it.
+				Thread.currentThread().interrupt();
+			}
+			return fetchMillis;
+		}
+
+		/*
+		 * A bulk prefetch is done once the image is stored, readEntity() put
+		 * it on disk or in a slab. Bytes read into memory are kept there too.
+		 */
+		private void fetched(DecodeJob job) {
+			ImageRequest request = job.request;
+			long length = job.bytes != null ? job.bytes.length : job.file
+					.length();
+			if (findDuplicate(job) != null) {
+				forgetDuplicate(request.url);
+			} else if (job.bytes != null) {
+				_encodedCache.put(request.url, job.bytes);
+			}
+			finishBulk(request);
+			request.bulk.onFetched(request, Math.max(length, 1));
+		}
+
+		private DecodeJob download(ImageRequest request) throws IOException {
+
+			HttpGet httpget = new HttpGet(request.url);
+			DecodeJob retVal = null;
+			request.activeGet = httpget;
+			try {
+
+				if (request.cancelled) {
+					// cancelled before it could see activeGet.
+					countCancelled(request);
+					return null;
+				}
+				// a context of its own, workers run side by side.
+				HttpContext context = new BasicHttpContext();
+				HttpResponse response = httpClient.execute(httpget, context);
+				HttpEntity entity = response.getEntity();
+
+				int status = response.getStatusLine().getStatusCode();
+				if (status >= 400) {
+					if (entity != null) {
+						entity.consumeContent();
+					}
+					if (status >= 500) {
+						// the server may be back in a moment.
+						throw new IOException("HTTP " + status + ": " + request);
+					}
+					// not there, not worth trying again.
+					return null;
+				}
+
+				if (entity != null) {
+					retVal = readEntity(request, entity);
+				}
+			} catch (IOException e) {
+				httpget.abort();
+				throw e;
+			} finally {
+				request.activeGet = null;
+			}
+
+			return retVal;
+		}
+
+		/**
+		 * With streaming decode the response is copied to the disk cache
+		 * through a pooled buffer and never held in memory. Without a disk
+		 * cache, or if someone else is already writing the URL, it is read
+		 * into memory. A response small enough for a slab is always read into
+		 * memory and packed into one.
+		 */
+		private DecodeJob readEntity(ImageRequest request, HttpEntity entity)
+				throws IOException {
+
+			MessageDigest digest = newDigest();
+			boolean small = SlabStore.fits(entity.getContentLength());
+			if (_streamingDecode && !small && !request.noStream) {
+				File file = streamToDisk(request, entity, digest);
+				if (file != null) {
+					return new DecodeJob(request, file, null, false,
+							toHex(digest));
+				}
+			}
+
+			byte[] bytes = EntityUtils.toByteArray(entity);
+			if (!writeToSlabs(request.url, bytes)
+					&& (small || !_streamingDecode)) {
+				writeToDisk(request.url, bytes);
+			}
+			if (digest != null) {
+				digest.update(bytes);
+			}
+			return new DecodeJob(request, null, bytes, false, toHex(digest));
+		}
+	}
+
+	/*
+	 * Tries a failed download again once the retry policy's delay is over,
+	 * without holding up a worker in the meantime. Gives up once the policy
+	 * says so.
+	 */
+	private static void retry(ImageRequest request, IOException cause) {
+		int attempts = ++request.attempts;
+		RetryPolicy policy = _retryPolicy;
+		if (!policy.shouldRetry(attempts)) {
+			Log.i(TAG, "Image Provider ---- failed " + attempts + " times");
+			fail(request,
+					cause instanceof UnknownHostException ? NegativeCache.FAILURE_DNS
+							: NegativeCache.FAILURE_TIMEOUT);
+			return;
+		}
+
+		long delay = policy.getDelay(attempts);
+		Log.i(TAG, "Image Provider Failed ---- retrying in " + delay + "ms");
+		_retryCount.incrementAndGet();
+		_retryQueue.put(new RetryEntry(request, SystemClock.elapsedRealtime()
+				+ delay));
+	}
+
+	/*
+	 * Gives up on a request, whoever waits for it gets the placeholder. The
+	 * URL goes in the negative cache, not the placeholder in the memory cache.
+	 */
+	private static void fail(ImageRequest request, int failure) {
+		_negativeCache.put(request.url, failure);
+		_failedUrls.put(request.url, Boolean.TRUE);
+		giveUp(request);
+	}
+
+	/*
+	 * Whoever waits for the request gets the placeholder, without anything
+	 * remembered about the URL.
+	 */
+	private static void giveUp(ImageRequest request) {
+		if (request.bulk != null) {
+			finishBulk(request);
+			request.bulk.onFailed(request);
+			return;
+		}
+		deliverUncached(request, getComingSoonImage());
+	}
+
+	/**
+	 * A failed download waiting to be tried again.
+	 */
+	private static final class RetryEntry implements Delayed {
+		final ImageRequest request;
+
+		/**
+		 * SystemClock.elapsedRealtime() to try again at.
+		 */
+		final long due;
+
+		RetryEntry(ImageRequest request, long due) {
+			this.request = request;
+			this.due = due;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - SystemClock.elapsedRealtime(),
+					TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed another) {
+			long other = ((RetryEntry) another).due;
+			return due < other ? -1 : (due == other ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Moves failed downloads back on the download queue once they are due.
+	 */
+	static class RetryThread extends Thread {
+
+		public RetryThread(String name) {
+			super();
+			this.setName(name);
+			this.setDaemon(EXIT_THREADS_UPON_APPLICATION_EXIT);
+		}
+
+		@Override
+		public void run() {
+			while (!isInterrupted()) {
+				RetryEntry entry;
+				try {
+					entry = _retryQueue.take();
+				} catch (InterruptedException e) {
+					// shut down, leave with the flag set.
+					interrupt();
+					return;
+				}
+
+				if (entry.request.cancelled) {
+					countCancelled(entry.request);
+				} else {
+					queueDownload(entry.request);
+				}
+			}
+		}
+	}
+
+	/**
+	 * An encoded image on disk or in memory waiting to be decoded, or a
+	 * larger decoded one waiting to be scaled down.
+	 */
+	private static final class DecodeJob {
+		final ImageRequest request;
+		final File file;
+		final byte[] bytes;
+
+		/**
+		 * Read from the disk cache or the encoded memory cache, rather than
+		 * just downloaded.
+		 */
+		final boolean fromDisk;
+
+		/**
+		 * Larger size of the image from the memory cache, claimed so it isn't
+		 * pooled before it is scaled down.
+		 */
+		final Bitmap source;
+
+		/**
+		 * Hash of the bytes of a download, null for anything else.
+		 */
+		final String hash;
+
+		DecodeJob(ImageRequest request, File file, byte[] bytes,
+				boolean fromDisk) {
+			this(request, file, bytes, fromDisk, null);
+		}
+
+		DecodeJob(ImageRequest request, File file, byte[] bytes,
+				boolean fromDisk, String hash) {
+			this.request = request;
+			this.file = file;
+			this.bytes = bytes;
+			this.fromDisk = fromDisk;
+			this.source = null;
+			this.hash = hash;
+		}
+
+		DecodeJob(ImageRequest request, Bitmap source) {
+			this.request = request;
+			this.file = null;
+			this.bytes = null;
+			this.fromDisk = false;
+			this.source = source;
+			this.hash = null;
+		}
+	}
+
+	/*
+	 * Looks in memory for the image at a larger size, the next bucket up
+	 * first and the full size last, for a sized request to be scaled down
+	 * from. The bitmap found is marked in flight, so it can't be pooled until
+	 * releaseSource() even if it is evicted meanwhile.
+	 */
+	private static Bitmap claimLargerVariant(ImageRequest request) {
+		if (request.bucket <= 0 || request.noDerive) {
+			return null;
+		}
+
+		for (int bucket = request.bucket << 1;; bucket <<= 1) {
+			String key = bucket > MAX_DERIVE_BUCKET ? request.url
+					: ImageRequest.getKey(request.url, bucket);
+			Bitmap source = claimSource(key);
+			if (source != null || bucket > MAX_DERIVE_BUCKET) {
+				return source;
+			}
+		}
+	}
+
+	private static Bitmap claimSource(String key) {
+		Bitmap source = _imageCache.peek(key);
+		if (source == null) {
+			return null;
+		}
+
+		synchronized (_poolLock) {
+			// one on its way to a view is left alone, releasing it here
+			// would let it be pooled before it lands.
+			if (_inFlight.containsKey(source)
+					|| _evictedInUse.containsKey(source)) {
+				return null;
+			}
+			_inFlight.put(source, Boolean.TRUE);
+		}
+
+		// evicted between the lookup and the claim, it may be pooled already.
+		if (!_imageCache.contains(key) || source.isRecycled()) {
+			releaseSource(source);
+			return null;
+		}
+		return source;
+	}
+
+	/*
+	 * Done scaling a claimed bitmap down, pools it if it left the cache
+	 * meanwhile and nothing else uses it.
+	 */
+	private static void releaseSource(Bitmap source) {
+		boolean released;
+		synchronized (_poolLock) {
+			_inFlight.remove(source);
+			released = releaseEvicted(source);
+		}
+		if (released) {
+			_bitmapPool.put(source);
+		}
+	}
+
+	/*
+	 * Hands an encoded image over to the decode threads, blocking while they
+	 * are behind so the disk and download threads don't run ahead of them.
+	 * While paused it is parked instead, nothing is decoded then anyway.
+	 */
+	private static void queueDecode(DecodeJob job) throws InterruptedException {
+		if (!park(job)) {
+			_decodeQueue.put(job);
+		}
+	}
+
+	/*
+	 * @return false if not paused, the job wasn't parked.
+	 */
+	private static boolean park(DecodeJob job) {
+		synchronized (_pauseLock) {
+			if (!_paused) {
+				return false;
+			}
+			_parkedJobs.add(job);
+			return true;
+		}
+	}
+
+	/*
+	 * The oldest parked job, null if there is none or still paused.
+	 */
+	private static DecodeJob pollParked() {
+		synchronized (_pauseLock) {
+			return _paused ? null : _parkedJobs.poll();
+		}
+	}
+
+	/**
+	 * Decodes encoded images, one thread per core. While paused these park
+	 * whatever they take off the decode queue, so the disk and download
+	 * threads never wait for them and the network carries on.
+	 */
+	static class DecodeThread extends Thread {
+
+		public DecodeThread(String name) {
+			super();
+			this.setName(name);
+			this.setDaemon(EXIT_THREADS_UPON_APPLICATION_EXIT);
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+			while (!isInterrupted()) {
+				DecodeJob job = pollParked();
+				if (job == null) {
+					try {
+						job = _decodeQueue.take();
+					} catch (InterruptedException e) {
+						// shut down, leave with the flag set.
+						interrupt();
+						return;
+					}
+				}
+
+				if (park(job)) {
+					continue;
+				}
+				if (job.request.cancelled) {
+					if (job.source != null) {
+						releaseSource(job.source);
+					}
+					continue;
+				}
+				decode(job);
+				_decodeMeter.mark();
+			}
+		}
+
+		private void decode(DecodeJob job) {
+			ImageRequest request = job.request;
+			if (job.source != null) {
+				derive(job);
+				return;
+			}
+
+			// the same bytes as another URL's, share its bitmap if it is in
+			// memory and its cache entry otherwise.
+			String owner = findDuplicate(job);
+			String key = request.key;
+			if (owner != null) {
+				key = ImageRequest.getKey(owner, request.bucket);
+				Bitmap shared = claimSource(key);
+				if (shared != null) {
+					Log.i(TAG, "Duplicate of " + owner + ": " + request);
+					forgetDuplicate(request.url);
+					deliverUncached(request, shared);
+					return;
+				}
+			}
+
+			// a file small enough for the encoded cache is read whole, then
+			// decoded from memory. One that is gone has a length of 0.
+			byte[] bytes = job.bytes;
+			long length = bytes == null ? job.file.length() : 0;
+			if (length > 0 && _encodedCache.fits(length)) {
+				bytes = readFile(job.file);
+			}
+
+			Bitmap bitmap;
+			if (bytes != null) {
+				bitmap = ImageDecoder.decodeByteArray(bytes, request.bucket,
+						_bitmapPool);
+			} else {
+				bitmap = ImageDecoder.decodeFile(job.file.getPath(),
+						request.bucket, _bitmapPool);
+			}
+
+			if (bitmap != null) {
+				if (owner != null) {
+					// the owner's encoded copy is the one kept.
+					forgetDuplicate(request.url);
+				} else if (bytes != null) {
+					_encodedCache.put(request.url, bytes);
+				}
+				cacheBitmap(key, bitmap);
+				deliverUncached(request, bitmap);
+				return;
+			}
+
+			if (bytes == null && !job.file.exists()) {
+				// evicted or replaced on disk since it was looked up or
+				// downloaded, that's a miss and not a broken image.
+				Log.i(TAG, "Gone from disk: " + request);
+				if (!job.fromDisk) {
+					// it didn't even last until its first decode.
+					request.noStream = true;
+				}
+				queueDownload(request);
+				return;
+			}
+
+			// unreadable, don't keep it in memory or on disk.
+			forgetEncoded(request.url);
+
+			if (job.fromDisk) {
+				// let the network replace it.
+				queueDownload(request);
+			} else {
+				fail(request, NegativeCache.FAILURE_DECODE);
+			}
+		}
+
+		/*
+		 * @return null if the file can't be read whole.
+		 */
+		private byte[] readFile(File file) {
+			try {
+				InputStream in = new FileInputStream(file);
+				try {
+					byte[] bytes = new byte[(int) file.length()];
+					int offset = 0;
+					int count;
+					while (offset < bytes.length
+							&& (count = in.read(bytes, offset, bytes.length
+									- offset)) != -1) {
+						offset += count;
+					}
+					return offset == bytes.length ? bytes : null;
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		private void derive(DecodeJob job) {
+			ImageRequest request = job.request;
+			Bitmap bitmap = null;
+			try {
+				bitmap = ImageDecoder.scale(job.source, request.bucket,
+						_bitmapPool);
+			} catch (RuntimeException e) {
+				Log.w(TAG, "Couldn't scale down for " + request, e);
+			} catch (OutOfMemoryError e) {
+				Log.w(TAG, "Out of memory scaling down for " + request);
+			} finally {
+				releaseSource(job.source);
+			}
+
+			if (bitmap != null) {
+				_derivedCount.incrementAndGet();
+				deliver(request, bitmap);
+				return;
+			}
+
+			// decode it from disk or the network instead.
+			request.noDerive = true;
+			_diskQueue.put(request);
+		}
+	}
+
+	/**
+	 * Holds back decoding and delivery, such as while a list flings, so the
+	 * workers don't compete with the UI thread. Downloads and disk lookups
+	 * carry on, what they finish waits for resume().
+	 */
+	public static void pause() {
+		synchronized (_pauseLock) {
+			_paused = true;
+		}
+	}
+
+	/**
+	 * Lets decoding carry on and delivers everything that finished while
+	 * paused in one go.
+	 */
+	public static void resume() {
+		ArrayList<Delivery> held;
+		synchronized (_pauseLock) {
+			if (!_paused) {
+				return;
+			}
+			_paused = false;
+			// wakes idle decode threads without blocking, they take whatever
+			// doesn't fit from the parked jobs before the queue.
+			while (!_parkedJobs.isEmpty()
+					&& _decodeQueue.offer(_parkedJobs.peek())) {
+				_parkedJobs.poll();
+			}
+			held = _heldDeliveries;
+			_heldDeliveries = new ArrayList<Delivery>();
+		}
+
+		for (Delivery delivery : held) {
+			notifySubscribers(delivery.request);
+		}
+		deliverToTargets(held);
+	}
+
+	public static boolean isPaused() {
+		synchronized (_pauseLock) {
+			return _paused;
+		}
+	}
+
+	/**
+	 * A finished image on its way to the views waiting for it.
+	 */
+	private static final class Delivery {
+		final ImageRequest request;
+		final Bitmap bitmap;
+
+		Delivery(ImageRequest request, Bitmap bitmap) {
+			this.request = request;
+			this.bitmap = bitmap;
+		}
+	}
+
+	/**
+	 * Caches a finished image and lets everyone subscribed to it know.
+	 */
+	private static void deliver(ImageRequest request, Bitmap bitmap) {
+		// cached before it stops being pending, a caller in between would
+		// otherwise find neither and download it again.
+		cacheBitmap(request.key, bitmap);
+		deliverUncached(request, bitmap);
+	}
+
+	/*
+	 * Lets everyone subscribed to a finished request know, without caching
+	 * the image.
+	 */
+	private static void deliverUncached(ImageRequest request, Bitmap bitmap) {
+		removePending(request);
+		_previews.remove(request.key);
+
+		if (bitmap != null) {
+			Delivery delivery = new Delivery(request, bitmap);
+			synchronized (_poolLock) {
+				_inFlight.put(bitmap, Boolean.TRUE);
+			}
+			synchronized (_pauseLock) {
+				if (_paused) {
+					_heldDeliveries.add(delivery);
+					return;
+				}
+			}
+
+			notifySubscribers(request);
+			ArrayList<Delivery> deliveries = new ArrayList<Delivery>(1);
+			deliveries.add(delivery);
+			deliverToTargets(deliveries);
+		}
+	}
+
+	/*
+	 * Lets everyone waiting on a request know a preview is in, without
+	 * finishing the request: handlers stay subscribed and views stay bound
+	 * for the full image. Nothing is shown while paused.
+	 */
+	private static void deliverPreview(final ImageRequest request,
+			final Bitmap preview) {
+		if (request.cancelled || request.done || isPaused()) {
+			return;
+		}
+		_previews.put(request.key, preview);
+		_previewCount.incrementAndGet();
+
+		for (ImageNotifyHandler handler : request.subscriptions) {
+			handler.notifyImage(request.url);
+		}
+
+		if (request.handles.isEmpty()) {
+			return;
+		}
+		_mainHandler.post(new Runnable() {
+			public void run() {
+				if (_previews.get(request.key) != preview) {
+					// the full image got there first.
+					return;
+				}
+				for (ImageRequestHandle handle : request.handles) {
+					if (!handle.direct || handle.isCancelled()) {
+						continue;
+					}
+					ImageView view = handle.target.get();
+					if (view != null && _targets.get(view) == handle) {
+						view.setImageBitmap(preview);
+						markDisplayed(view, preview);
+					}
+				}
+			}
+		});
+	}
+
+	/*
+	 * Lets every handler subscribed to a finished request know, each exactly
+	 * once. Handlers are taken out one by one, so one that is subscribing at
+	 * the same time is either taken here or by subscribe(), never both.
+	 */
+	private static void notifySubscribers(ImageRequest request) {
+		final String remoteImageUrl = request.url;
+		request.done = true;
+
+		ImageNotifyHandler handler;
+		while ((handler = request.subscriptions.poll()) != null) {
+			Log.i(TAG, "Finished Downloading: " + remoteImageUrl);
+			handler.notifyImage(remoteImageUrl);
+		}
+	}
+
+	/*
+	 * Sets finished images into every view still waiting for them, all in one
+	 * pass on the UI thread. Views that were recycled for another image since
+	 * they asked are skipped.
+	 */
+	private static void deliverToTargets(final ArrayList<Delivery> deliveries) {
+		boolean anyTargets = false;
+		for (Delivery delivery : deliveries) {
+			anyTargets |= !delivery.request.handles.isEmpty();
+		}
+		if (!anyTargets) {
+			landed(deliveries);
+			return;
+		}
+
+		_mainHandler.post(new Runnable() {
+			public void run() {
+				for (Delivery delivery : deliveries) {
+					for (ImageRequestHandle handle : delivery.request.handles) {
+						if (!handle.direct || handle.isCancelled()) {
+							continue;
+						}
+						ImageView view = handle.target.get();
+						if (view != null && _targets.get(view) == handle) {
+							_targets.remove(view);
+							view.setImageBitmap(delivery.bitmap);
+							markDisplayed(view, delivery.bitmap);
+						}
+					}
+				}
+				landed(deliveries);
+			}
+		});
+	}
+
+	/*
+	 * Called for every bitmap leaving the memory cache. Pools it, unless a
+	 * view shows it, it is on its way to one or a caller holds it. One that a
+	 * view shows or is about to is pooled once no view shows it anymore.
+	 */
+	private static void recycleIfUnused(Bitmap bitmap) {
+		if (bitmap == null || !BitmapPool.isReuseSupported()) {
+			return;
+		}
+		synchronized (_poolLock) {
+			if (_handedOut.containsKey(bitmap)) {
+				return;
+			}
+			if (isInUse(bitmap)) {
+				_evictedInUse.put(bitmap, Boolean.TRUE);
+				return;
+			}
+		}
+		_bitmapPool.put(bitmap);
+	}
+
+	/*
+	 * Remembers what a view was given, pooling what it showed before if that
+	 * already left the cache and nothing else uses it.
+	 */
+	private static void markDisplayed(ImageView view, Bitmap bitmap) {
+		Bitmap previous;
+		synchronized (_poolLock) {
+			previous = _displayed.put(view, bitmap);
+			if (previous == bitmap) {
+				return;
+			}
+			if (bitmap != null) {
+				Integer count = _displayCounts.get(bitmap);
+				_displayCounts.put(bitmap, count == null ? 1 : count + 1);
+			}
+			if (previous == null) {
+				return;
+			}
+			Integer count = _displayCounts.get(previous);
+			if (count != null && count > 1) {
+				_displayCounts.put(previous, count - 1);
+			} else {
+				_displayCounts.remove(previous);
+			}
+			if (!releaseEvicted(previous)) {
+				return;
+			}
+		}
+		_bitmapPool.put(previous);
+	}
+
+	/*
+	 * Deliveries that reached their views, or had none to reach.
+	 */
+	private static void landed(ArrayList<Delivery> deliveries) {
+		ArrayList<Bitmap> released = new ArrayList<Bitmap>();
+		synchronized (_poolLock) {
+			for (Delivery delivery : deliveries) {
+				_inFlight.remove(delivery.bitmap);
+				if (releaseEvicted(delivery.bitmap)) {
+					released.add(delivery.bitmap);
+				}
+			}
+		}
+		for (Bitmap bitmap : released) {
+			_bitmapPool.put(bitmap);
+		}
+	}
+
+	/*
+	 * Guarded by _poolLock.
+	 * 
+	 * @return true if the bitmap left the cache while in use and no longer
+	 *         is.
+	 */
+	private static boolean releaseEvicted(Bitmap bitmap) {
+		if (!_evictedInUse.containsKey(bitmap) || isInUse(bitmap)) {
+			return false;
+		}
+		_evictedInUse.remove(bitmap);
+		return true;
+	}
+
+	/*
+	 * Guarded by _poolLock.
+	 */
+	private static boolean isInUse(Bitmap bitmap) {
+		return _inFlight.containsKey(bitmap)
+				|| _displayCounts.containsKey(bitmap);
+	}
+
+	/*
+	 * Claims a bitmap just looked up in the memory cache before an eviction
+	 * can pool it, the same way as claimSource(). One set directly is shown
+	 * by the view from now on, one returned to a caller may be kept or shown
+	 * anywhere and is never pooled.
+	 * 
+	 * @return null if there was none, or it left the cache between the
+	 * lookup and the claim and may be pooled already.
+	 */
+	private static Bitmap claimCached(String key, Bitmap bitmap,
+			ImageView target, boolean direct) {
+		if (bitmap == null) {
+			return null;
+		}
+		if (direct) {
+			markDisplayed(target, bitmap);
+		} else {
+			synchronized (_poolLock) {
+				_handedOut.put(bitmap, Boolean.TRUE);
+			}
+		}
+
+		// a view the lookup is too late for shows the placeholder instead,
+		// which releases the claim again.
+		if (_imageCache.peek(key) != bitmap || bitmap.isRecycled()) {
+			return null;
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Opens the disk cache the first time it is needed. Returns null if there
+	 * is no context yet or the cache directory can't be used.
+	 */
+	private static ImageDiskCache getDiskCache() {
+		synchronized (_diskCacheLock) {
+			if (_diskCache == null || _diskCache.isClosed()) {
+				if (Globals.getInstance().getContext() == null) {
+					return null;
+				}
+				File directory = new File(Globals.getInstance().getContext()
+						.getCacheDir(), DISK_CACHE_DIRECTORY);
+				try {
+					_diskCache = ImageDiskCache.open(directory, _diskCacheSize);
+				} catch (IOException e) {
+					Log.e(TAG, "Unable to open disk cache", e);
+					_diskCache = null;
+				}
+			}
+			return _diskCache;
+		}
+	}
+
+	private static SlabStore getSlabStore() {
+		synchronized (_slabStoreLock) {
+			if (_slabStore == null || _slabStore.isClosed()) {
+				if (Globals.getInstance().getContext() == null) {
+					return null;
+				}
+				File directory = new File(Globals.getInstance().getContext()
+						.getCacheDir(), SLAB_STORE_DIRECTORY);
+				try {
+					_slabStore = SlabStore.open(directory, _slabStoreSize);
+				} catch (IOException e) {
+					Log.e(TAG, "Unable to open slab store", e);
+					_slabStore = null;
+				}
+			}
+			return _slabStore;
+		}
+	}
+
+	/*
+	 * @return false if the image is too big for a slab or there is no slab
+	 * store.
+	 */
+	private static boolean writeToSlabs(String remoteImageUrl, byte[] bytes) {
+		if (!SlabStore.fits(bytes.length)) {
+			return false;
+		}
+		SlabStore slabStore = getSlabStore();
+		if (slabStore == null) {
+			return false;
+		}
+
+		try {
+			return slabStore.put(ImageDiskCache.keyFor(remoteImageUrl), bytes);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private static void removeFromSlabs(String remoteImageUrl) {
+		SlabStore slabStore = getSlabStore();
+		if (slabStore != null) {
+			try {
+				slabStore.remove(ImageDiskCache.keyFor(remoteImageUrl));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Reads the negative cache file the first time it is needed, never from
+	 * the UI thread. The UI thread's lookups don't wait for it.
+	 */
+	private static NegativeCache getNegativeCache() {
+		if (!_negativeCache.isLoaded()
+				&& Globals.getInstance().getContext() != null) {
+			_negativeCache.load(new File(Globals.getInstance().getContext()
+					.getCacheDir(), NEGATIVE_CACHE_FILE));
+		}
+		return _negativeCache;
+	}
+
+	/*
+	 * Keeps the encoded bytes so the next cold start doesn't download again.
+	 */
+	private static void writeToDisk(String remoteImageUrl, byte[] bytes) {
+		ImageDiskCache diskCache = getDiskCache();
+		if (diskCache == null) {
+			return;
+		}
+
+		ImageDiskCache.Editor editor = null;
+		try {
+			editor = diskCache.edit(ImageDiskCache.keyFor(remoteImageUrl));
+			if (editor == null) {
+				// someone else is already writing it.
+				return;
+			}
+			OutputStream out = editor.newOutputStream();
+			try {
+				out.write(bytes);
+			} finally {
+				out.close();
+			}
+			editor.commit();
+		} catch (IOException e) {
+			e.printStackTrace();
+			if (editor != null) {
+				try {
+					editor.abort();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	/*
+	 * Copies a response to the disk cache. Returns null without touching the
+	 * response if there is no disk cache or the URL is already being written.
+	 * The file returned may be gone by the time it is decoded.
+	 */
+	private static File streamToDisk(ImageRequest request, HttpEntity entity,
+			MessageDigest digest) throws IOException {
+		ImageDiskCache diskCache = getDiskCache();
+		if (diskCache == null) {
+			return null;
+		}
+
+		String key = ImageDiskCache.keyFor(request.url);
+		ImageDiskCache.Editor editor = diskCache.edit(key);
+		if (editor == null) {
+			return null;
+		}
+
+		long length = entity.getContentLength();
+		Previewer previewer = isProgressive(request, length) ? new Previewer(
+				request, editor.getFile(), length) : null;
+
+		byte[] buffer = ImageDecoder.BUFFER_POOL.acquire();
+		boolean committed = false;
+		try {
+			InputStream in = entity.getContent();
+			try {
+				OutputStream out = editor.newOutputStream();
+				try {
+					int count;
+					while ((count = in.read(buffer)) != -1) {
+						out.write(buffer, 0, count);
+						if (digest != null) {
+							digest.update(buffer, 0, count);
+						}
+						if (previewer != null) {
+							previewer.onReceived(count);
+						}
+					}
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+			editor.commit();
+			committed = true;
+		} finally {
+			ImageDecoder.BUFFER_POOL.release(buffer);
+			if (!committed) {
+				editor.abort();
+			}
+		}
+
+		File file = diskCache.get(key);
+		// evicted straight away, the response is used up. The decode stage
+		// finds the file missing and fetches the image again.
+		return file != null ? file : editor.getFile();
+	}
+
+	/*
+	 * Records the hash of a download.
+	 * 
+	 * @return the URL the same bytes were downloaded under first, null if
+	 * there is none or the job isn't a download.
+	 */
+	private static String findDuplicate(DecodeJob job) {
+		String owner = job.hash == null ? null : _contentIndex.add(job.hash,
+				job.request.url);
+		if (owner != null) {
+			_duplicateCount.incrementAndGet();
+			_duplicateBytes.addAndGet(job.bytes != null ? job.bytes.length
+					: job.file.length());
+		}
+		return owner;
+	}
+
+	/*
+	 * Drops the encoded copies of a URL from memory, slabs and disk.
+	 */
+	private static void forgetEncoded(String url) {
+		_encodedCache.remove(url);
+		removeFromSlabs(url);
+		ImageDiskCache diskCache = getDiskCache();
+		if (diskCache != null) {
+			try {
+				diskCache.remove(ImageDiskCache.keyFor(url));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Drops the copies of a URL found to share its bytes with another. The
+	 * one on disk and in slabs is kept until the alias is confirmed, it is
+	 * what the URL is served from once the alias expires.
+	 */
+	private static void forgetDuplicate(String url) {
+		if (_contentIndex.isConfirmed(url)) {
+			forgetEncoded(url);
+		} else {
+			_encodedCache.remove(url);
+		}
+	}
+
+	/*
+	 * Hashes downloads to find the ones already cached under another URL,
+	 * null if the device has no MD5.
+	 */
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+
+	private static String toHex(MessageDigest digest) {
+		if (digest == null) {
+			return null;
+		}
+		byte[] hash = digest.digest();
+		StringBuilder builder = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+			builder.append(Character.forDigit(b & 0xf, 16));
+		}
+		return builder.toString();
+	}
+
+	/*
+	 * The URL an image is cached and downloaded under: the canonical one,
+	 * or the one it turned out to share its bytes with.
+	 */
+	private static String resolveUrl(String url) {
+		if (url == null) {
+			return null;
+		}
+		UrlCanonicalizer canonicalizer = _urlCanonicalizer;
+		if (canonicalizer != null) {
+			url = canonicalizer.canonicalize(url);
+		}
+		return _contentIndex.resolve(url);
+	}
+
+	private static boolean isProgressive(ImageRequest request, long length) {
+		// a bulk prefetch never decodes, not even a preview.
+		return _progressiveLoading && request.bulk == null
+				&& (request.bucket == 0
+						|| request.bucket >= PROGRESSIVE_MIN_BUCKET)
+				&& (length < 0 || length >= PROGRESSIVE_MIN_BYTES);
+	}
+
+	/**
+	 * Makes a preview of a large image while it streams to disk: its EXIF
+	 * thumbnail once the start of the file is in, or if it has none, what
+	 * is in so far subsampled once about half of it is. Runs on the download
+	 * worker, a preview is small and made at most twice per download.
+	 */
+	private static final class Previewer {
+		private final ImageRequest request;
+
+		/**
+		 * The partial file the download is written to.
+		 */
+		private final File file;
+
+		/**
+		 * Bytes to wait for before subsampling the partial file.
+		 */
+		private final long partialThreshold;
+
+		private long received;
+		private boolean exifTried;
+		private boolean done;
+
+		Previewer(ImageRequest request, File file, long length) {
+			this.request = request;
+			this.file = file;
+			this.partialThreshold = length > 0 ? length / 2
+					: PARTIAL_PREVIEW_BYTES;
+		}
+
+		void onReceived(int count) {
+			received += count;
+			if (done) {
+				return;
+			}
+
+			if (!exifTried && received >= EXIF_SCAN_BYTES) {
+				exifTried = true;
+				done = show(decodeExifThumbnail());
+			}
+			if (!done && received >= partialThreshold) {
+				done = true;
+				show(decodePartial());
+			}
+		}
+
+		private boolean show(Bitmap preview) {
+			if (preview == null) {
+				return false;
+			}
+			deliverPreview(request, preview);
+			return true;
+		}
+
+		private Bitmap decodeExifThumbnail() {
+			try {
+				ExifInterface exif = new ExifInterface(file.getPath());
+				byte[] thumbnail = exif.hasThumbnail() ? exif.getThumbnail()
+						: null;
+				if (thumbnail != null) {
+					return ImageDecoder.decodeByteArray(thumbnail,
+							PREVIEW_SIZE, null);
+				}
+			} catch (IOException e) {
+				// not a JPEG, or the header isn't in yet.
+			} catch (RuntimeException e) {
+				Log.w(TAG, "Couldn't read EXIF of " + request, e);
+			}
+			return null;
+		}
+
+		private Bitmap decodePartial() {
+			try {
+				// the rows that aren't in yet come out blank.
+				return ImageDecoder.decodeFile(file.getPath(), PREVIEW_SIZE,
+						null);
+			} catch (RuntimeException e) {
+				Log.w(TAG, "Couldn't preview " + request, e);
+			} catch (OutOfMemoryError e) {
+				Log.w(TAG, "Out of memory previewing " + request);
+			}
+			return null;
+		}
+	}
+
+	/*
+	 * cache Bitmap
+	 */
+	private static void cacheBitmap(String key, Bitmap b) {
+		if (key != null && b != null) {
+			_imageCache.put(key, b);
+		}
+	}
+
+	/**
+	 * Frees memory in steps as the system asks for it, rather than starting
+	 * from scratch like clear(). The higher the level, the more goes:
+	 * 
+	 * running moderate, half the bitmap pool; running low, the bitmap pool;
+	 * UI hidden and background, half of the memory cache as well; running
+	 * critical and moderate, three quarters of the memory cache and every
+	 * prefetch; complete, the whole memory cache and every request for an
+	 * image that isn't on screen.
+	 * 
+	 * Images pinned by an open scope go last. Call from
+	 * Application.onTrimMemory(int).
+	 */
+	public static void onTrimMemory(int level) {
+		Log.i(TAG, "Trimming memory, level " + level);
+		if (level >= TRIM_MEMORY_COMPLETE) {
+			onLowMemory();
+			return;
+		}
+
+		if (level >= TRIM_MEMORY_RUNNING_LOW) {
+			_bitmapPool.clear();
+			ImageDecoder.BUFFER_POOL.clear();
+		} else {
+			_bitmapPool.trimToSize(_bitmapPool.getMaxSize() / 2);
+		}
+
+		long maxSize = _imageCache.getMaxSize();
+		long encodedMaxSize = _encodedCache.getMaxSize();
+		if (level >= TRIM_MEMORY_MODERATE
+				|| level == TRIM_MEMORY_RUNNING_CRITICAL) {
+			_imageCache.trimToSize(maxSize / 4);
+			_encodedCache.trimToSize(encodedMaxSize / 4);
+			cancelPendingRequests(PRIORITY_PREFETCH);
+		} else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+			_imageCache.trimToSize(maxSize / 2);
+			_encodedCache.trimToSize(encodedMaxSize / 2);
+		}
+	}
+
+	/**
+	 * Frees every image kept in memory and drops the requests for images that
+	 * aren't on screen. Unlike clear(), scopes, failed URLs and what is on
+	 * its way to a view are kept. Call from Application.onLowMemory().
+	 */
+	public static void onLowMemory() {
+		_previews.clear();
+		_encodedCache.clear();
+		_bitmapPool.clear();
+		ImageDecoder.BUFFER_POOL.clear();
+		_imageCache.trimToSize(0);
+		cancelPendingRequests(PRIORITY_LOW);
+	}
+
+	/*
+	 * Cancels the pending requests of a priority or lower, prefetches only
+	 * if nobody waits for them yet.
+	 */
+	private static void cancelPendingRequests(int maxPriority) {
+		for (ImageRequest request : _pendingRequests.values()) {
+			if (request.priority > maxPriority) {
+				continue;
+			}
+			boolean wanted = request.targets.get() > 0 || request.untargeted
+					|| !request.subscriptions.isEmpty();
+			if (request.priority == PRIORITY_PREFETCH && wanted) {
+				continue;
+			}
+			cancelRequest(request);
+		}
+	}
+
+	/**
+	 * clears image provider system, allowing it to free up memory and start
+	 * from scratch.
+	 */
+	public static void clear() {
+
+		if (_failedUrls != null) {
+			_failedUrls.clear();
+		}
+		if (_retryQueue != null) {
+			_retryQueue.clear();
+		}
+		if (_pendingRequests != null) {
+			_pendingRequests.clear();
+		}
+		_pendingUrls.clear();
+		_bulkRequests.clear();
+		if (_targets != null) {
+			_targets.clear();
+		}
+		if (_diskQueue != null) {
+			_diskQueue.clear();
+		}
+		if (_downloadQueue != null) {
+			_downloadQueue.clear();
+		}
+		if (_decodeQueue != null) {
+			_decodeQueue.clear();
+		}
+		synchronized (_pauseLock) {
+			_parkedJobs.clear();
+		}
+		if (_imageCache != null) {
+			_imageCache.clear();
+		}
+		_previews.clear();
+		_encodedCache.clear();
+		_contentIndex.clear();
+		_bitmapPool.clear();
 	}
 
-	private static final String TAG = "ImageProvider";
-
 	/**
-	 * Image to load if web service isn't complete, allowed to be Garbage
-	 * collected if needed.
+	 * Number of images in the download queue that haven't started.
 	 */
-	private static Bitmap _loadingImage;
+	public static int getUnresolvedCount() {
+		return _downloadQueue.size();
+	}
 
 	/**
-	 * Image to load if the image doesn't exist or bad URL, allowed to be
-	 * Garbage collected if needed.
+	 * Number of downloads since the start, failed ones included. However many
+	 * callers ask for the same image at the same time, it is downloaded once.
 	 */
-	private static Bitmap _comingSoonImage;
+	public static long getDownloadCount() {
+		return _downloadMeter.getCount();
+	}
 
 	/**
-	 * Image to load in place of large loading images, allowed to be Garbage
-	 * collected if needed.
+	 * Number of images scaled down from a larger size of the same image
+	 * already in memory, instead of being decoded.
 	 */
-	private static Bitmap _largeLoadingImage;
+	public static long getDerivedCount() {
+		return _derivedCount.get();
+	}
 
 	/**
-	 * Amount of threads for producer / consumer
+	 * Number of images that missed memory but didn't need the network,
+	 * either scaled down from a larger size in memory or read from disk.
 	 */
-	private static final int PRESCRIBED_DOWNLOAD_THREAD_COUNT = 2;
+	public static long getSavedDownloadCount() {
+		return _derivedCount.get() + _diskHitCount.get();
+	}
 
 	/**
-	 * Which type of threads to run
+	 * Replaces the rules URLs are canonicalized by, such as one with host
+	 * aliases added. Null takes URLs as they are. Handlers are notified with,
+	 * and images cached under, the canonical URL.
 	 */
-	private static final boolean EXIT_THREADS_UPON_APPLICATION_EXIT = true;
+	public static void setUrlCanonicalizer(UrlCanonicalizer urlCanonicalizer) {
+		_urlCanonicalizer = urlCanonicalizer;
+	}
 
 	/**
-	 * A queue of URLs to be downloaded that blocks. While in a thread looping,
-	 * it'll wait until it is fed to iterate.
+	 * The URL an image is cached under, the one handlers are notified with.
 	 */
-	private static LinkedBlockingQueue<String> _downloadQueue = new LinkedBlockingQueue<String>();
+	public static String getCacheUrl(String remoteImageUrl) {
+		return resolveUrl(remoteImageUrl);
+	}
 
 	/**
-	 * An activities subscription to this image download. The action will occur
-	 * when the image is finished downloading.
+	 * Number of downloads that turned out to hold the same bytes as an image
+	 * already cached under another URL. They share its cache entries, and
+	 * the URL is loaded as that one from then on.
 	 */
-	private static ConcurrentHashMap<String, ConcurrentLinkedQueue<ImageNotifyHandler>> _downloadSubscriptions = new ConcurrentHashMap<String, ConcurrentLinkedQueue<ImageNotifyHandler>>();
+	public static long getDuplicateCount() {
+		return _duplicateCount.get();
+	}
 
 	/**
-	 * A synchronized map that contains a WeakHashMap. To simplify, it means the
-	 * garbage collector will clear these as it deems. They'll never be tied
-	 * into another class instantiation.
-	 * 
-	 * The images won't de-load because they're inside of a ImageView, but when
-	 * the ImageView is no longer on screen memory will quickly be retrieved.
+	 * Encoded bytes of the duplicate downloads, which weren't kept a second
+	 * time on disk or in memory. Their decoded bitmaps weren't either.
 	 */
-	private static Map<String, Bitmap> _imageCache = (Map<String, Bitmap>) Collections
-			.synchronizedMap(new WeakHashMap<String, Bitmap>(30, .75F));
+	public static long getDeduplicatedBytes() {
+		return _duplicateBytes.get();
+	}
 
 	/**
-	 * A list of images that timed out when downloading.
+	 * Number of requests waiting to be looked up on disk.
 	 */
-	private static HashSet<String> _timedOutCache = new HashSet<String>();
+	public static int getDiskQueueDepth() {
+		return _diskQueue.size();
+	}
 
 	/**
-	 * Threads that will be spinning attempting to grab a URL from the list to
-	 * download. If one is in the middle of downloading another will grab the
-	 * next available URL and began the process.
+	 * Number of requests waiting for a download worker, same as
+	 * getUnresolvedCount().
 	 */
-	private static GetThread[] _subscribedThreads = null;
+	public static int getDownloadQueueDepth() {
+		return _downloadQueue.size();
+	}
 
 	/**
-	 * Keeps track of which group or activity is loaded. To relieve the system
-	 * even further and avoid running it thin, as an activity pauses or finishes
-	 * the Image Cache manually unloads.
-	 * 
-	 * If the onResume is called, the images will reload.
+	 * Number of encoded images waiting for a decode thread, parked ones
+	 * included. Once the queue reaches its capacity, unless paused, the disk
+	 * and download threads wait for the decoders.
 	 */
-	private static String _currentActivity = "";
+	public static int getDecodeQueueDepth() {
+		synchronized (_pauseLock) {
+			return _decodeQueue.size() + _parkedJobs.size();
+		}
+	}
 
 	/**
-	 * Should be called as the application starts. Initializes the
-	 * ImageProvider.
+	 * Disk lookups per second, hits and misses.
 	 */
-	public static void initialize() {
+	public static float getDiskThroughput() {
+		return _diskMeter.getRate();
+	}
 
-		if (_downloadSubscriptions != null) {
-			_downloadSubscriptions.clear();
-		}
+	/**
+	 * Downloads per second, including failed ones.
+	 */
+	public static float getDownloadThroughput() {
+		return _downloadMeter.getRate();
+	}
 
-		if (_subscribedThreads == null) {
-			_subscribedThreads = new GetThread[PRESCRIBED_DOWNLOAD_THREAD_COUNT];
-			TakeThreadStackAction(new ThreadStackAction() {
-				public void onThreadStack(GetThread thread, int id) {
-					if (thread == null) {
-						if (_subscribedThreads != null) {
-							if (id < _subscribedThreads.length) {
-								String title = "Subscribed Thread: " + id;
-								_subscribedThreads[id] = new GetThread(
-										APIRequest.getClient(), title);
-							}
-						}
-					}
-				}
-			});
-		}
+	/**
+	 * Decodes per second, including images that couldn't be decoded.
+	 */
+	public static float getDecodeThroughput() {
+		return _decodeMeter.getRate();
+	}
 
-		TakeThreadStackAction(new ThreadStackAction() {
-			public void onThreadStack(GetThread thread, int id) {
+	/**
+	 * Number of downloads that were skipped or aborted because every view that
+	 * wanted them was recycled.
+	 */
+	public static long getCancelledCount() {
+		return _cancelledDownloadCount.get();
+	}
 
-				if (thread != null) {
+	/**
+	 * Number of times a view asked for an image.
+	 */
+	public static long getBindCount() {
+		return _bindCount.get();
+	}
 
-					if (!thread.isAlive()) {
-						thread.start();
-					}
-				}
-			}
-		});
+	/**
+	 * Number of times a view asked for an image that was already in memory,
+	 * compare with getBindCount() to see how well prefetching works.
+	 */
+	public static long getBindHitCount() {
+		return _bindHitCount.get();
+	}
 
+	/**
+	 * Number of retries since the start, a download that failed twice and
+	 * then worked counts twice.
+	 */
+	public static long getRetryCount() {
+		return _retryCount.get();
 	}
 
 	/**
-	 * An outside method can decide if this will be used, but cached as it may
-	 * be used a lot. Other loading images can also be used.
-	 * 
-	 * @return default loading image.
+	 * Number of hosts currently failing fast.
 	 */
-	public static Bitmap getLoadingImage() {
+	public static int getOpenCircuitCount() {
+		return _circuitBreaker.getOpenCount();
+	}
 
-		if (_loadingImage == null) {
-			_loadingImage = BitmapFactory.decodeResource(Globals.getInstance()
-					.getContext().getResources(), R.drawable.loading);
-		}
+	/**
+	 * Changes how often and how soon failed downloads are tried again.
+	 */
+	public static void setRetryPolicy(RetryPolicy retryPolicy) {
+		_retryPolicy = retryPolicy == null ? new RetryPolicy() : retryPolicy;
+	}
 
-		return _loadingImage;
+	/**
+	 * Number of URLs the negative cache remembers, some may have expired.
+	 */
+	public static int getNegativeCacheCount() {
+		return _negativeCache.size();
 	}
 
 	/**
-	 * An outside method can decide if this will be used, but cached as it may
-	 * be used a lot. Other loading images can also be used.
+	 * Changes how long a type of failure is remembered.
 	 * 
-	 * @return large loading image.
+	 * @param failure
+	 *            - One of the NegativeCache.FAILURE_ types.
 	 */
-	public static Bitmap getLargeLoadingImage() {
+	public static void setNegativeCacheTimeToLive(int failure, long millis) {
+		_negativeCache.setTimeToLive(failure, millis);
+	}
 
-		if (_largeLoadingImage == null) {
-			_largeLoadingImage = BitmapFactory.decodeResource(Globals
-					.getInstance().getContext().getResources(),
-					R.drawable.loading_big);
-		}
+	/**
+	 * Forgets every failed URL, on disk too, so they are tried again. Unlike
+	 * this, clear() leaves the failures alone.
+	 */
+	public static void clearNegativeCache() {
+		_negativeCache.clear();
+	}
 
-		return _largeLoadingImage;
+	/**
+	 * Number of urls that couldn't be downloaded, even after retrying, in the
+	 * Group or Activity Set.
+	 */
+	public static int getTimeoutCount() {
+		return _failedUrls.size();
 	}
 
 	/**
-	 * An outside method can decide if this will be used, but cached as it may
-	 * be used a lot. Other placeholder images can also be used.
+	 * Changes how much of the maximum heap decoded images may take, evicting
+	 * straight away if the budget shrank.
 	 * 
-	 * @return placeholder image.
+	 * @param fraction
+	 *            - between 0 and 1, 0.125 would be an eighth of the heap.
 	 */
-	public static Bitmap getComingSoonImage() {
-
-		if (_comingSoonImage == null) {
-			_comingSoonImage = BitmapFactory.decodeResource(Globals
-					.getInstance().getContext().getResources(),
-					R.drawable.comingsoonoff);
-		}
-
-		return _comingSoonImage;
+	public static void setMemoryCacheFraction(float fraction) {
+		setMemoryCacheSize(BitmapLruCache.getHeapFractionSize(fraction));
 	}
 
 	/**
-	 * Queues a bitmap for download if it isn't already downloaded, the threads
-	 * will fire up and download. If an image is downloaded it'll return. This
-	 * takes a ImageNotify handler that'll execute when the image is finished
-	 * downloading.
-	 * 
-	 * It also takes Activity name. If one activity is still actively
-	 * downloading images and another attempts. The out dated activity will be
-	 * cleared out and the new activity will take preference.
-	 * 
-	 * @param remoteImageUrl
-	 *            - URL to download.
-	 * @param handler
-	 *            - Action to happen once URL is downloaded.
-	 * @param activityName
-	 *            - Group or Activity that is currently downloading.
-	 * @return Bitmap that's downloaded.
+	 * Changes how many bytes decoded images may take.
 	 */
-	public static Bitmap getBitmap(String remoteImageUrl,
-			ImageNotifyHandler handler, String activityName) {
+	public static void setMemoryCacheSize(long maxSize) {
+		_imageCache.setMaxSize(maxSize);
+	}
 
-		if (_currentActivity == null || _currentActivity.equalsIgnoreCase("")) {
-			_currentActivity = activityName;
-		} else if (!_currentActivity.equalsIgnoreCase(activityName)) {
-			clear();
-			_currentActivity = activityName;
-		}
-		Bitmap bitmap = _imageCache.get(remoteImageUrl);
-		if (bitmap != null) {
-			return bitmap;
-		}
+	/**
+	 * Amount of bytes the decoded images in memory take.
+	 */
+	public static long getMemoryCacheSize() {
+		return _imageCache.getSize();
+	}
 
-		ConcurrentLinkedQueue<ImageNotifyHandler> subscriptions = _downloadSubscriptions
-				.get(remoteImageUrl);
-		if (subscriptions != null) {
-			if (handler == null || subscriptions.contains(handler)) {
-				return null;
-			} else {
-				synchronized (_downloadSubscriptions) {
-					subscriptions = _downloadSubscriptions.get(remoteImageUrl);
-					if (subscriptions != null) {
-						subscriptions.add(handler);
-						return null;
-					}
-				}
-			}
-		}
+	/**
+	 * Amount of bytes the decoded images in memory may take.
+	 */
+	public static long getMemoryCacheMaxSize() {
+		return _imageCache.getMaxSize();
+	}
 
-		subscriptions = new ConcurrentLinkedQueue<ImageNotifyHandler>();
-		if (handler != null) {
-			subscriptions.add(handler);
-		}
-		_downloadSubscriptions.put(remoteImageUrl, subscriptions);
+	/**
+	 * Amount of decoded images evicted to stay under the memory budget.
+	 */
+	public static long getMemoryCacheEvictionCount() {
+		return _imageCache.getEvictionCount();
+	}
 
-		try {
-			_downloadQueue.put(remoteImageUrl);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
+	/**
+	 * Share of the lookups in the decoded memory cache that found the image.
+	 */
+	public static float getMemoryCacheHitRate() {
+		return getHitRate(_imageCache.getHitCount(), _imageCache.getMissCount());
+	}
 
-		return null;
+	/**
+	 * Changes how many bytes the encoded images in memory may take. An image
+	 * taking more than an eighth of it isn't kept.
+	 */
+	public static void setEncodedCacheSize(long maxSize) {
+		_encodedCache.setMaxSize(maxSize);
 	}
 
 	/**
-	 * A thread that performs a GET, in this case on an image a lot of these can
-	 * be running async.
+	 * Amount of bytes the encoded images in memory take.
 	 */
-	static class GetThread extends Thread {
+	public static long getEncodedCacheSize() {
+		return _encodedCache.getSize();
+	}
 
-		private final HttpClient httpClient;
-		private final HttpContext context;
+	/**
+	 * Amount of images that missed the decoded cache and were decoded again
+	 * from the encoded cache.
+	 */
+	public static long getEncodedCacheHitCount() {
+		return _encodedCache.getHitCount();
+	}
 
-		public GetThread(HttpClient httpClient, String name) {
-			super();
-			this.httpClient = httpClient;
-			this.context = new BasicHttpContext();
-			this.setName(name);
-			this.setPriority(Process.THREAD_PRIORITY_BACKGROUND);
-			this.setDaemon(EXIT_THREADS_UPON_APPLICATION_EXIT);
-		}
+	/**
+	 * Share of the lookups in the encoded memory cache, made after a miss in
+	 * the decoded cache, that found the image.
+	 */
+	public static float getEncodedCacheHitRate() {
+		return getHitRate(_encodedCache.getHitCount(),
+				_encodedCache.getMissCount());
+	}
 
-		/**
-		 * Executes the GetMethod and prints some status information.
-		 */
-		@Override
-		public void run() {
+	/**
+	 * Share of the lookups on disk, made after a miss in both memory caches,
+	 * that found the image.
+	 */
+	public static float getDiskHitRate() {
+		long lookups = _diskMeter.getCount();
+		return getHitRate(_diskHitCount.get(), lookups - _diskHitCount.get());
+	}
 
-			while (true) {
-				String remoteImageUrl = null;
+	private static float getHitRate(long hits, long misses) {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : hits / (float) lookups;
+	}
 
-				// this will block until there is an item in the queue
-				try {
-					remoteImageUrl = _downloadQueue.take();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+	/**
+	 * Changes how many bytes the bitmaps kept for reuse may take.
+	 */
+	public static void setBitmapPoolSize(long maxSize) {
+		_bitmapPool.setMaxSize(maxSize);
+	}
 
-				if (remoteImageUrl != null && remoteImageUrl.length() > 0) {
+	/**
+	 * Amount of bytes the bitmaps kept for reuse take.
+	 */
+	public static long getBitmapPoolSize() {
+		return _bitmapPool.getSize();
+	}
 
-					Bitmap downloadedBitmap = downloadBitmap(remoteImageUrl);
-					Log.i(TAG, "Downloading: " + remoteImageUrl);
-					if (downloadedBitmap == null) {
-						downloadedBitmap = getComingSoonImage();
-					}
-					final ConcurrentLinkedQueue<ImageNotifyHandler> subscriptions = _downloadSubscriptions
-							.remove(remoteImageUrl);
-
-					if (downloadedBitmap != null) {
-						cacheBitmap(remoteImageUrl, downloadedBitmap);
-
-						if (_downloadSubscriptions != null) {
-							synchronized (_downloadSubscriptions) {
-								if (subscriptions != null) {
-
-									for (final ImageNotifyHandler handler : subscriptions) {
-										if (handler != null) {
-											Log.i(TAG, "Finished Downloading: "
-													+ remoteImageUrl);
-											final Message secondMsg = new Message();
-											secondMsg.obj = remoteImageUrl;
-											handler.sendMessage(secondMsg);
-										}
-									}
-								}
-							}
-						}
+	/**
+	 * Times a decode drew into a pooled bitmap instead of allocating one.
+	 */
+	public static long getBitmapPoolHitCount() {
+		return _bitmapPool.getHitCount();
+	}
 
-					}
-				}
+	/**
+	 * Times a decode looked for a pooled bitmap and had to allocate one.
+	 */
+	public static long getBitmapPoolMissCount() {
+		return _bitmapPool.getMissCount();
+	}
 
-			}
-		}
+	/**
+	 * Recycles every pooled bitmap, such as when memory runs low. The pool
+	 * also empties itself once the heap is nearly full.
+	 */
+	public static void trimBitmapPool() {
+		_bitmapPool.clear();
+	}
 
-		private Bitmap downloadBitmap(String remoteImageUrl) {
+	/**
+	 * Turns streaming decode on or off. While on, downloads are copied to the
+	 * disk cache as they arrive and decoded from there, rather than read into
+	 * a byte array first, so a download never holds the whole encoded image in
+	 * memory. Without a disk cache downloads are always read into memory, the
+	 * decode threads can't hold on to the connection. On by default.
+	 */
+	public static void setStreamingDecode(boolean streamingDecode) {
+		_streamingDecode = streamingDecode;
+	}
 
-			HttpGet httpget = new HttpGet(remoteImageUrl);
-			Bitmap retVal = null;
-			try {
+	/**
+	 * Turns progressive loading on or off. While on, full size images and
+	 * images of 512 pixels or more that take a while to download are shown
+	 * at a low resolution first: subscribers are notified once for the
+	 * preview and once more for the full image, and getBitmapFromCache()
+	 * returns the preview in between. Only works with streaming decode. On
+	 * by default.
+	 */
+	public static void setProgressiveLoading(boolean progressiveLoading) {
+		_progressiveLoading = progressiveLoading;
+	}
 
-				HttpResponse response = httpClient.execute(httpget, context);
-				HttpEntity entity = response.getEntity();
+	/**
+	 * Number of previews shown while large images downloaded.
+	 */
+	public static long getPreviewCount() {
+		return _previewCount.get();
+	}
 
-				if (entity != null) {
-					byte[] bytes = EntityUtils.toByteArray(entity);
-					retVal = BitmapFactory.decodeByteArray(bytes, 0,
-							bytes.length);
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
-				if (!_timedOutCache.contains(remoteImageUrl)) {
-					_downloadQueue.add(remoteImageUrl);
-					Log.i(TAG,
-							"Image Provider Failed ---- adding to timedoutcache");
-					_timedOutCache.add(remoteImageUrl);
-				} else {
-					Log.i(TAG, "Image Provider ---- failed twice");
-				}
-				if (httpget != null) {
-					httpget.abort();
+	/**
+	 * Changes how many bytes the encoded images on disk may take.
+	 */
+	public static void setDiskCacheSize(long maxSize) {
+		synchronized (_diskCacheLock) {
+			_diskCacheSize = maxSize;
+			if (_diskCache != null && !_diskCache.isClosed()) {
+				try {
+					_diskCache.setMaxSize(maxSize);
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
-
 			}
-
-			return retVal;
 		}
 	}
 
-	/*
-	 * cache Bitmap
+	/**
+	 * Amount of bytes the encoded images on disk take, 0 until the disk cache
+	 * is opened.
 	 */
-	private static void cacheBitmap(String key, Bitmap b) {
-		if (key != null && b != null) {
-			_imageCache.put(key, b);
-		}
+	public static long getDiskCacheSize() {
+		ImageDiskCache diskCache = _diskCache;
+		return diskCache == null ? 0 : diskCache.getSize();
 	}
 
-	/*
-	 * Take an action on a large amount of threads.
+	/**
+	 * Amount of images that were read from disk instead of downloaded.
 	 */
-	public static void TakeThreadStackAction(ThreadStackAction action) {
-		for (int i = 0; i < PRESCRIBED_DOWNLOAD_THREAD_COUNT; i++) {
-			GetThread t = _subscribedThreads[i];
-			action.onThreadStack(t, i);
-		}
+	public static long getDiskCacheHitCount() {
+		ImageDiskCache diskCache = _diskCache;
+		return diskCache == null ? 0 : diskCache.getHitCount();
 	}
 
 	/**
-	 * Thread Action to be taken
+	 * Deletes every image kept on disk. Unlike clear() this means the next
+	 * start has to download everything again.
 	 */
-	public interface ThreadStackAction {
-		void onThreadStack(GetThread thread, int id);
+	public static void clearDiskCache() {
+		synchronized (_diskCacheLock) {
+			ImageDiskCache diskCache = getDiskCache();
+			if (diskCache != null) {
+				try {
+					diskCache.delete();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				_diskCache = null;
+			}
+		}
+		synchronized (_slabStoreLock) {
+			SlabStore slabStore = getSlabStore();
+			if (slabStore != null) {
+				try {
+					slabStore.delete();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				_slabStore = null;
+			}
+		}
 	}
 
 	/**
-	 * clears image provider system, allowing it to free up memory and start
-	 * from scratch.
+	 * Changes how many bytes the small images packed into slabs may take,
+	 * images of up to 32KB are kept there instead of in a file each.
 	 */
-	public static void clear() {
-
-		if (_timedOutCache != null) {
-			_timedOutCache.clear();
-		}
-		if (_downloadSubscriptions != null) {
-			_downloadSubscriptions.clear();
-		}
-		if (_downloadQueue != null) {
-			_downloadQueue.clear();
-		}
-		if (_imageCache != null) {
-			_imageCache.clear();
+	public static void setSlabStoreSize(long maxSize) {
+		synchronized (_slabStoreLock) {
+			_slabStoreSize = maxSize;
+			if (_slabStore != null && !_slabStore.isClosed()) {
+				try {
+					_slabStore.setMaxSize(maxSize);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
 		}
 	}
 
 	/**
-	 * This is used by abstract classes to manage a Group or Activity of images.
-	 * 
-	 * @param currentActivity
+	 * Amount of bytes the slab files take, 0 until the slab store is opened.
+	 * Includes images that were removed but not compacted away yet.
 	 */
-	public static void setCurrentActivity(String currentActivity) {
-		_currentActivity = currentActivity;
+	public static long getSlabStoreSize() {
+		SlabStore slabStore = _slabStore;
+		return slabStore == null ? 0 : slabStore.getFileSize();
 	}
 
 	/**
-	 * Number of images in the download queue that haven't started.
+	 * Amount of small images that were read from a slab instead of
+	 * downloaded.
 	 */
-	public static int getUnresolvedCount() {
-		return _downloadQueue.size();
+	public static long getSlabStoreHitCount() {
+		SlabStore slabStore = _slabStore;
+		return slabStore == null ? 0 : slabStore.getHitCount();
 	}
 
 	/**
-	 * Number of urls that timed out in the Group or Activity Set.
+	 * Get a bitmap that is sure to be in the cache, or the preview of one
+	 * still downloading.
 	 */
-	public static int getTimeoutCount() {
-		return _timedOutCache.size();
+	public static Bitmap getBitmapFromCache(String url) {
+		url = resolveUrl(url);
+		return fromCache(url, url);
 	}
 
 	/**
-	 * Get a bitmap that is sure to be in the cache.
+	 * Get a bitmap that is sure to be in the cache at the size it was asked
+	 * for with getBitmap(String, int, int, ImageNotifyHandler, String), or
+	 * the preview of one still downloading.
 	 */
-	public static Bitmap getBitmapFromCache(String url) {
-		return _imageCache.get(url);
+	public static Bitmap getBitmapFromCache(String url, int width, int height) {
+		url = resolveUrl(url);
+		return fromCache(url, ImageRequest.getKey(url, width, height));
+	}
+
+	/*
+	 * Failed images aren't cached, they are answered from the negative cache.
+	 */
+	private static Bitmap fromCache(String url, String key) {
+		Bitmap bitmap = claimCached(key, _imageCache.get(key), null, false);
+		if (bitmap == null) {
+			bitmap = _previews.get(key);
+		}
+		if (bitmap == null && _negativeCache.contains(url)) {
+			return getComingSoonImage();
+		}
+		return bitmap;
 	}
 }
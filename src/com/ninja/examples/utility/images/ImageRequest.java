@@ -0,0 +1,209 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.ninja.examples.utility.images;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * One image to load: where it comes from and how big it needs to be.
+ *
+ * Sizes are rounded up to a bucket so views of nearly the same size share
+ * one decoded variant. A request without a size keeps the full image and is
+ * keyed by its URL alone.
+ */
+final class ImageRequest {
+
+	/**
+	 * Smallest bucket, anything smaller is decoded at this size.
+	 */
+	private static final int MIN_BUCKET = 32;
+
+	private static final String SIZE_SEPARATOR = "#";
+
+	final String url;
+
+	/**
+	 * Longest side the decoded image needs, 0 means full size.
+	 */
+	final int bucket;
+
+	/**
+	 * Key in the memory cache and in the subscriptions.
+	 */
+	final String key;
+
+	/**
+	 * Lower case host the image is downloaded from, empty if the URL can't be
+	 * parsed.
+	 */
+	final String host;
+
+	/**
+	 * Handlers to notify once the image is ready.
+	 */
+	final ConcurrentLinkedQueue<ImageNotifyHandler> subscriptions = new ConcurrentLinkedQueue<ImageNotifyHandler>();
+
+	/**
+	 * Views that asked for the image, the ones still waiting for it when it's
+	 * ready and want it directly get it set.
+	 */
+	final ConcurrentLinkedQueue<ImageRequestHandle> handles = new ConcurrentLinkedQueue<ImageRequestHandle>();
+
+	/**
+	 * Higher goes first, only changed by the queue holding the request.
+	 */
+	volatile int priority = ImageProvider.PRIORITY_NORMAL;
+
+	/**
+	 * When the request was last queued or touched, newer goes first among
+	 * equal priorities.
+	 */
+	long sequence;
+
+	/**
+	 * Amount of views whose handle still wants this image.
+	 */
+	final AtomicInteger targets = new AtomicInteger();
+
+	/**
+	 * Someone asked for the image without a view, so it can't be cancelled by
+	 * views being recycled.
+	 */
+	volatile boolean untargeted;
+
+	/**
+	 * Set once the subscriptions are being notified, or a bulk request's
+	 * followers. A handler or follower added after this may not be seen
+	 * anymore.
+	 */
+	volatile boolean done;
+
+	/**
+	 * Nobody wants the image anymore, it is neither downloaded nor delivered.
+	 */
+	volatile boolean cancelled;
+
+	/**
+	 * Downloads that failed so far, only changed by the worker holding the
+	 * request.
+	 */
+	volatile int attempts;
+
+	/**
+	 * Don't scale the image down from a larger size in memory, doing so
+	 * already failed once.
+	 */
+	volatile boolean noDerive;
+
+	/**
+	 * Read the download into memory instead of streaming it to disk, the
+	 * file streamed last time was gone before it could be decoded.
+	 */
+	volatile boolean noStream;
+
+	/**
+	 * The bulk prefetch the request is part of, it is only fetched to disk
+	 * and never decoded. Null for everything else.
+	 */
+	volatile PrefetchHandle bulk;
+
+	/**
+	 * Requests for the same URL that wait for this bulk request to store the
+	 * image rather than download it again, queued once it's done.
+	 */
+	final ConcurrentLinkedQueue<ImageRequest> followers = new ConcurrentLinkedQueue<ImageRequest>();
+
+	/**
+	 * The GET currently downloading the image, so it can be aborted.
+	 */
+	volatile HttpUriRequest activeGet;
+
+	private final AtomicBoolean _saved = new AtomicBoolean();
+
+	/**
+	 * @param url
+	 *            - URL to download.
+	 * @param width
+	 *            - Width in pixels the image is shown at, 0 for full size.
+	 * @param height
+	 *            - Height in pixels the image is shown at, 0 for full size.
+	 */
+	ImageRequest(String url, int width, int height) {
+		this.url = url;
+		this.bucket = getBucket(width, height);
+		this.key = getKey(url, bucket);
+		this.host = getHost(url);
+	}
+
+	static String getHost(String url) {
+		if (url == null) {
+			return "";
+		}
+		try {
+			String host = new URL(url).getHost();
+			return host == null ? "" : host.toLowerCase();
+		} catch (MalformedURLException e) {
+			return "";
+		}
+	}
+
+	/**
+	 * Rounds the longest requested side up to a power of two.
+	 */
+	static int getBucket(int width, int height) {
+		int size = Math.max(width, height);
+		if (size <= 0) {
+			return 0;
+		}
+
+		int bucket = MIN_BUCKET;
+		while (bucket < size) {
+			bucket <<= 1;
+		}
+		return bucket;
+	}
+
+	static String getKey(String url, int bucket) {
+		if (bucket <= 0) {
+			return url;
+		}
+		return url + SIZE_SEPARATOR + bucket;
+	}
+
+	static String getKey(String url, int width, int height) {
+		return getKey(url, getBucket(width, height));
+	}
+
+	/**
+	 * @return true the first time a cancelled request is counted as a saved
+	 *         download.
+	 */
+	boolean markSaved() {
+		return _saved.compareAndSet(false, true);
+	}
+
+	@Override
+	public String toString() {
+		return key;
+	}
+}
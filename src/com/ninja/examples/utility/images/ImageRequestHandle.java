@@ -0,0 +1,81 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.ninja.examples.utility.images;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.widget.ImageView;
+
+/**
+ * Ties a request to the view that made it. When the view is rebound to
+ * another image the handle is cancelled, and if nobody else still wants the
+ * image its download is dropped from the queue or aborted.
+ */
+public final class ImageRequestHandle {
+
+	final ImageRequest request;
+
+	/**
+	 * The view that made the request, weak so a handle never keeps an
+	 * activity alive.
+	 */
+	final WeakReference<ImageView> target;
+
+	/**
+	 * The finished image goes straight into the view instead of through a
+	 * handler.
+	 */
+	final boolean direct;
+
+	private final AtomicBoolean _cancelled = new AtomicBoolean();
+
+	ImageRequestHandle(ImageRequest request, ImageView target, boolean direct) {
+		this.request = request;
+		this.target = new WeakReference<ImageView>(target);
+		this.direct = direct;
+	}
+
+	public String getUrl() {
+		return request.url;
+	}
+
+	/**
+	 * URL and size bucket the view asked for.
+	 */
+	public String getKey() {
+		return request.key;
+	}
+
+	public boolean isCancelled() {
+		return _cancelled.get();
+	}
+
+	/**
+	 * Withdraws this view's interest in the image.
+	 */
+	public void cancel() {
+		ImageProvider.cancel(this);
+	}
+
+	/**
+	 * @return true the first time only.
+	 */
+	boolean markCancelled() {
+		return _cancelled.compareAndSet(false, true);
+	}
+}
@@ -0,0 +1,256 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.ninja.examples.utility.images;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A blocking queue of image requests that hands out the most important one
+ * first: the highest priority, and among equal priorities the one asked for
+ * most recently. Unlike a PriorityBlockingQueue the priority of a request
+ * can change while it waits.
+ *
+ * The requests are kept sorted, a request is only moved when its priority
+ * or sequence changes, so looking past a head that can't be taken yet
+ * doesn't sort anything.
+ */
+final class ImageRequestQueue {
+
+	private static final Comparator<ImageRequest> ORDER = new Comparator<ImageRequest>() {
+		public int compare(ImageRequest lhs, ImageRequest rhs) {
+			if (lhs.priority != rhs.priority) {
+				return lhs.priority > rhs.priority ? -1 : 1;
+			}
+			if (lhs.sequence != rhs.sequence) {
+				// newest first.
+				return lhs.sequence > rhs.sequence ? -1 : 1;
+			}
+			return 0;
+		}
+	};
+
+	/**
+	 * Shared so the order stays meaningful when a request moves between
+	 * queues, and unique so no two requests compare as equal.
+	 */
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
+	/**
+	 * A request's priority and sequence are only changed while it is out of
+	 * the set, its place in the set depends on them.
+	 */
+	private final TreeSet<ImageRequest> _queue = new TreeSet<ImageRequest>(
+			ORDER);
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _notEmpty = _lock.newCondition();
+
+	/**
+	 * Decides, while the queue is locked, whether a worker may take a
+	 * request. Whatever it reserves for an accepted request is the caller's
+	 * to give back. Every worker polling a queue shares the same gate, so a
+	 * request one of them is refused none of them may take.
+	 */
+	interface Gate {
+		boolean tryClaim(ImageRequest request);
+	}
+
+	/**
+	 * Queues a request as the newest of its priority.
+	 */
+	void put(ImageRequest request) {
+		_lock.lock();
+		try {
+			request.sequence = SEQUENCE.incrementAndGet();
+			_queue.add(request);
+			// one request, one waiter. If its gate refuses the request so
+			// would every other waiter's.
+			_notEmpty.signal();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until there is a request, then returns the most important one.
+	 */
+	ImageRequest take() throws InterruptedException {
+		_lock.lockInterruptibly();
+		try {
+			while (_queue.isEmpty()) {
+				_notEmpty.await();
+			}
+			ImageRequest request = _queue.first();
+			_queue.remove(request);
+			return request;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits up to the timeout for a request the gate accepts, then returns the
+	 * most important of those.
+	 * 
+	 * @return null if the timeout elapsed first.
+	 */
+	ImageRequest poll(long timeout, TimeUnit unit, Gate gate)
+			throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		_lock.lockInterruptibly();
+		try {
+			while (true) {
+				ImageRequest request = claim(gate);
+				if (request != null) {
+					return request;
+				}
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = _notEmpty.awaitNanos(nanos);
+			}
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/*
+	 * Removes the most important request the gate accepts, walking the
+	 * requests in order. The head is nearly always accepted.
+	 */
+	private ImageRequest claim(Gate gate) {
+		Iterator<ImageRequest> waiting = _queue.iterator();
+		while (waiting.hasNext()) {
+			ImageRequest request = waiting.next();
+			if (gate.tryClaim(request)) {
+				waiting.remove();
+				return request;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Wakes one waiting worker, such as once a request finished and its
+	 * gate may accept one more request than before.
+	 */
+	void signal() {
+		_lock.lock();
+		try {
+			_notEmpty.signal();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Wakes every waiting worker, such as once a gate may accept several
+	 * requests it refused before.
+	 */
+	void signalAll() {
+		_lock.lock();
+		try {
+			_notEmpty.signalAll();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Changes the priority of a waiting request and makes it the newest of
+	 * that priority.
+	 * 
+	 * @return false if the request isn't waiting in this queue.
+	 */
+	boolean setPriority(ImageRequest request, int priority) {
+		_lock.lock();
+		try {
+			if (!_queue.remove(request)) {
+				return false;
+			}
+			request.priority = priority;
+			request.sequence = SEQUENCE.incrementAndGet();
+			_queue.add(request);
+			return true;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Gives every waiting request for one of the URLs the promoted priority.
+	 * Requests that had the promoted priority but whose URL isn't in the
+	 * collection fall back to the demoted priority.
+	 */
+	void reprioritize(Collection<String> urls, int promoted, int demoted) {
+		_lock.lock();
+		try {
+			ArrayList<ImageRequest> changed = new ArrayList<ImageRequest>();
+			for (ImageRequest request : _queue) {
+				boolean wanted = urls.contains(request.url);
+				if (wanted ? request.priority != promoted
+						: request.priority == promoted) {
+					changed.add(request);
+				}
+			}
+
+			for (ImageRequest request : changed) {
+				_queue.remove(request);
+				request.priority = urls.contains(request.url) ? promoted
+						: demoted;
+				request.sequence = SEQUENCE.incrementAndGet();
+				_queue.add(request);
+			}
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	boolean remove(ImageRequest request) {
+		_lock.lock();
+		try {
+			return _queue.remove(request);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	int size() {
+		_lock.lock();
+		try {
+			return _queue.size();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	void clear() {
+		_lock.lock();
+		try {
+			_queue.clear();
+		} finally {
+			_lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,357 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package com.ninja.examples.utility.images;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Worker threads taking requests off an ImageRequestQueue. The pool keeps at
+ * least a minimum of workers, adds workers up to a maximum while the queue
+ * backs up or downloads are slow, and lets workers that sat idle for the keep
+ * alive time go again.
+ *
+ * No more than a limited amount of requests for the same host run at once,
+ * a worker skips over requests for a busy host to the next one it may take.
+ */
+final class ImageWorkerPool {
+
+	private static final String TAG = "ImageWorkerPool";
+
+	/**
+	 * Does the work for one request on a worker thread.
+	 */
+	interface Task {
+		/**
+		 * Returns the milliseconds the request was slow for, such as the
+		 * network fetch, or a negative number when nothing was timed. Time
+		 * spent handing the result on isn't part of it.
+		 */
+		long run(ImageRequest request);
+	}
+
+	/**
+	 * Waiting requests per worker before another worker is added.
+	 */
+	private static final int QUEUE_DEPTH_PER_WORKER = 2;
+
+	/**
+	 * Average time a task reports for a request before the pool stops
+	 * waiting for the queue to back up and adds a worker for anything
+	 * waiting. A downloader only reports the fetch, so a backed up decode
+	 * queue doesn't make the pool grow.
+	 */
+	private static final long SLOW_LATENCY_MILLIS = 1000;
+
+	/**
+	 * Weight of the newest sample in the average latency.
+	 */
+	private static final float LATENCY_WEIGHT = .2F;
+
+	private final String _name;
+	private final ImageRequestQueue _queue;
+	private final Task _task;
+
+	/**
+	 * Guarded by this.
+	 */
+	private final ArrayList<Worker> _workers = new ArrayList<Worker>();
+	private int _idleCount = 0;
+	private int _minWorkers;
+	private int _maxWorkers;
+	private long _keepAliveMillis;
+	private boolean _shutdown = false;
+	private int _workerId = 0;
+
+	/**
+	 * Requests running per host, guarded by itself. Only changed while the
+	 * queue is locked or after a request finished.
+	 */
+	private final HashMap<String, Integer> _activePerHost = new HashMap<String, Integer>();
+	private volatile int _maxPerHost;
+
+	private volatile long _latencyMillis = 0;
+	private volatile long _completedCount = 0;
+
+	private final ImageRequestQueue.Gate _gate = new ImageRequestQueue.Gate() {
+		public boolean tryClaim(ImageRequest request) {
+			synchronized (_activePerHost) {
+				Integer active = _activePerHost.get(request.host);
+				int count = active == null ? 0 : active.intValue();
+				if (count >= _maxPerHost) {
+					return false;
+				}
+				_activePerHost.put(request.host, Integer.valueOf(count + 1));
+				return true;
+			}
+		}
+	};
+
+	/**
+	 * @param name
+	 *            - Prefix of the worker thread names.
+	 * @param queue
+	 *            - Queue the workers take their requests from.
+	 * @param task
+	 *            - Work to do for each request.
+	 * @param minWorkers
+	 *            - Workers kept even when idle.
+	 * @param maxWorkers
+	 *            - Most workers running at once.
+	 * @param maxPerHost
+	 *            - Most requests for the same host running at once.
+	 * @param keepAliveMillis
+	 *            - How long a worker above the minimum may sit idle.
+	 */
+	ImageWorkerPool(String name, ImageRequestQueue queue, Task task,
+			int minWorkers, int maxWorkers, int maxPerHost,
+			long keepAliveMillis) {
+		_name = name;
+		_queue = queue;
+		_task = task;
+		_keepAliveMillis = keepAliveMillis;
+		_maxPerHost = Math.max(1, maxPerHost);
+		setLimits(minWorkers, maxWorkers);
+	}
+
+	/**
+	 * Changes how many workers may run, starting workers as needed. Workers
+	 * above a lowered maximum leave once they finish their request, or once
+	 * their keep alive time runs out if they are idle.
+	 */
+	synchronized void setLimits(int minWorkers, int maxWorkers) {
+		_minWorkers = Math.max(0, minWorkers);
+		_maxWorkers = Math.max(Math.max(1, _minWorkers), maxWorkers);
+		int excess = _workers.size() - _maxWorkers;
+		for (int i = 0; i < excess; i++) {
+			_workers.get(i).retired = true;
+		}
+		prestart();
+	}
+
+	void setMaxPerHost(int maxPerHost) {
+		_maxPerHost = Math.max(1, maxPerHost);
+		// a raised limit may let waiting workers take something.
+		_queue.signalAll();
+	}
+
+	synchronized void setKeepAlive(long keepAliveMillis) {
+		_keepAliveMillis = keepAliveMillis;
+	}
+
+	/**
+	 * Starts workers until the minimum is running.
+	 */
+	synchronized void prestart() {
+		while (!_shutdown && _workers.size() < _minWorkers) {
+			startWorker();
+		}
+	}
+
+	/**
+	 * Called after a request was queued. Adds a worker if none is idle and
+	 * the queue is backing up, or if downloads are slow enough that another
+	 * one running alongside is worth it.
+	 */
+	void onQueued() {
+		int depth = _queue.size();
+		synchronized (this) {
+			if (_shutdown) {
+				return;
+			}
+			int count = _workers.size();
+			if (count < _minWorkers) {
+				prestart();
+				return;
+			}
+			if (count >= _maxWorkers || _idleCount > 0 || depth == 0) {
+				return;
+			}
+			if (depth > count * QUEUE_DEPTH_PER_WORKER
+					|| _latencyMillis > SLOW_LATENCY_MILLIS) {
+				startWorker();
+			}
+		}
+	}
+
+	/**
+	 * Stops every worker. Idle workers leave straight away, busy ones once
+	 * their request returns. Requests left in the queue stay there.
+	 */
+	void shutdown() {
+		Worker[] workers;
+		synchronized (this) {
+			if (_shutdown) {
+				return;
+			}
+			_shutdown = true;
+			workers = _workers.toArray(new Worker[_workers.size()]);
+		}
+		for (Worker worker : workers) {
+			worker.interrupt();
+		}
+	}
+
+	synchronized boolean isShutdown() {
+		return _shutdown;
+	}
+
+	/**
+	 * Amount of workers running, busy or idle.
+	 */
+	synchronized int getWorkerCount() {
+		return _workers.size();
+	}
+
+	/**
+	 * Amount of workers busy with a request.
+	 */
+	synchronized int getActiveCount() {
+		return _workers.size() - _idleCount;
+	}
+
+	/**
+	 * Average time in milliseconds the task reported for a request, recent
+	 * ones weigh most.
+	 */
+	long getLatency() {
+		return _latencyMillis;
+	}
+
+	long getCompletedCount() {
+		return _completedCount;
+	}
+
+	/*
+	 * Guarded by this.
+	 */
+	private void startWorker() {
+		Worker worker = new Worker(_name + " " + (++_workerId));
+		_workers.add(worker);
+		worker.start();
+	}
+
+	/*
+	 * Leaves the pool if the worker is above the minimum.
+	 * 
+	 * @return true if the worker should stop.
+	 */
+	private synchronized boolean tryRetire(Worker worker) {
+		if (_shutdown || worker.retired || _workers.size() > _minWorkers) {
+			_workers.remove(worker);
+			return true;
+		}
+		return false;
+	}
+
+	private synchronized void leaveIdle() {
+		_idleCount--;
+	}
+
+	private void release(ImageRequest request) {
+		synchronized (_activePerHost) {
+			Integer active = _activePerHost.get(request.host);
+			if (active == null || active.intValue() <= 1) {
+				_activePerHost.remove(request.host);
+			} else {
+				_activePerHost.put(request.host,
+						Integer.valueOf(active.intValue() - 1));
+			}
+		}
+		// one slot is free, a worker may have skipped a request for this
+		// host. Waking one is enough, they all share the gate.
+		_queue.signal();
+	}
+
+	private synchronized void recordLatency(long millis) {
+		_completedCount++;
+		if (_latencyMillis == 0) {
+			_latencyMillis = millis;
+		} else {
+			_latencyMillis = (long) (LATENCY_WEIGHT * millis + (1 - LATENCY_WEIGHT)
+					* _latencyMillis);
+		}
+	}
+
+	private final class Worker extends Thread {
+
+		/**
+		 * Asked to leave once it's done, guarded by the pool.
+		 */
+		boolean retired = false;
+
+		Worker(String name) {
+			super(name);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			try {
+				while (!isInterrupted()) {
+					ImageRequest request;
+					long keepAlive;
+					synchronized (ImageWorkerPool.this) {
+						if (_shutdown || retired) {
+							break;
+						}
+						keepAlive = _keepAliveMillis;
+						_idleCount++;
+					}
+					try {
+						request = _queue.poll(keepAlive, TimeUnit.MILLISECONDS,
+								_gate);
+					} finally {
+						leaveIdle();
+					}
+
+					if (request == null) {
+						if (tryRetire(this)) {
+							return;
+						}
+						continue;
+					}
+
+					long millis = -1;
+					try {
+						millis = _task.run(request);
+					} catch (RuntimeException e) {
+						Log.e(TAG, "Failed: " + request, e);
+					} finally {
+						release(request);
+					}
+					if (millis >= 0) {
+						recordLatency(millis);
+					}
+				}
+			} catch (InterruptedException e) {
+				// shut down, leave with the flag set.
+				interrupt();
+			} finally {
+				synchronized (ImageWorkerPool.this) {
+					_workers.remove(this);
+				}
+			}
+		}
+	}
+}
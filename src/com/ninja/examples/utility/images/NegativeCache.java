@@ -0,0 +1,454 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package com.ninja.examples.utility.images;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * URLs that failed to load lately, so they are answered straight away
+ * instead of downloaded again. How long a failure is remembered depends on
+ * what went wrong: a missing image stays missing for a long time, a timeout
+ * may be gone in a minute.
+ *
+ * Once loaded from a file, every failure and every URL forgotten is appended
+ * to it as well, so the failures survive a restart. The file is only ever
+ * written by a background thread, a lookup never waits on the disk.
+ */
+public final class NegativeCache {
+
+	private static final String TAG = "NegativeCache";
+
+	/**
+	 * The server answered with a client error, such as 404.
+	 */
+	public static final int FAILURE_NOT_FOUND = 0;
+
+	/**
+	 * The host name couldn't be resolved.
+	 */
+	public static final int FAILURE_DNS = 1;
+
+	/**
+	 * The connection timed out or broke, including server errors.
+	 */
+	public static final int FAILURE_TIMEOUT = 2;
+
+	/**
+	 * The response wasn't an image that could be decoded.
+	 */
+	public static final int FAILURE_DECODE = 3;
+
+	private static final int FAILURE_TYPE_COUNT = 4;
+
+	/**
+	 * Written in place of a failure for a URL that was forgotten.
+	 */
+	private static final int REMOVED = -1;
+
+	private static final long MINUTE = 60 * 1000;
+
+	private static final String SEPARATOR = "\t";
+
+	private final long[] _timeToLive = new long[] { 24 * 60 * MINUTE,
+			5 * MINUTE, MINUTE, 24 * 60 * MINUTE };
+
+	private final int _maxEntries;
+
+	/**
+	 * URL to the entry, the oldest failure first. Guarded by this, which is
+	 * never held while the file is read or written.
+	 */
+	private final LinkedHashMap<String, Failure> _entries;
+
+	/**
+	 * Guarded by this.
+	 */
+	private File _file;
+
+	/**
+	 * Times clear() was called, so failures read from the file while it was
+	 * called aren't brought back. Guarded by this.
+	 */
+	private int _clearCount = 0;
+
+	/**
+	 * Lines waiting to be appended, or whether the file should be rewritten
+	 * from the entries instead. Guarded by _writeLock, which is taken while
+	 * holding this so lines queue up in the order the entries changed.
+	 */
+	private final Object _writeLock = new Object();
+	private ArrayList<String> _pendingLines = new ArrayList<String>();
+	private boolean _rewritePending = false;
+	private WriteThread _writeThread;
+
+	/**
+	 * @param maxEntries
+	 *            - Most URLs remembered, the oldest failures go first.
+	 */
+	public NegativeCache(final int maxEntries) {
+		_maxEntries = maxEntries;
+		_entries = new LinkedHashMap<String, Failure>(16, .75F, false) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, Failure> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Changes how long a type of failure is remembered.
+	 * 
+	 * @param failure
+	 *            - FAILURE_NOT_FOUND, FAILURE_DNS, FAILURE_TIMEOUT or
+	 *            FAILURE_DECODE.
+	 */
+	public synchronized void setTimeToLive(int failure, long millis) {
+		_timeToLive[failure] = millis;
+	}
+
+	/**
+	 * Remembers that a URL failed, replacing whatever failure it had before.
+	 */
+	public synchronized void put(String url, int failure) {
+		if (url == null || failure < 0 || failure >= FAILURE_TYPE_COUNT) {
+			return;
+		}
+
+		long expires = System.currentTimeMillis() + _timeToLive[failure];
+		_entries.remove(url);
+		_entries.put(url, new Failure(failure, expires));
+		append(toLine(url, failure, expires));
+	}
+
+	/**
+	 * Whether the URL failed lately, forgetting it if it failed too long ago.
+	 */
+	public synchronized boolean contains(String url) {
+		return getFailure(url) >= 0;
+	}
+
+	/**
+	 * @return how the URL failed lately, -1 if it didn't.
+	 */
+	public synchronized int getFailure(String url) {
+		Failure entry = _entries.get(url);
+		if (entry == null) {
+			return -1;
+		}
+		if (entry.expires <= System.currentTimeMillis()) {
+			// the line in the file has expired as well.
+			_entries.remove(url);
+			return -1;
+		}
+		return entry.failure;
+	}
+
+	/**
+	 * Forgets a failure, in the file as well.
+	 */
+	public synchronized void remove(String url) {
+		if (_entries.remove(url) != null) {
+			append(toLine(url, REMOVED, 0));
+		}
+	}
+
+	/**
+	 * Amount of URLs remembered, some may have expired already.
+	 */
+	public synchronized int size() {
+		return _entries.size();
+	}
+
+	public synchronized boolean isLoaded() {
+		return _file != null;
+	}
+
+	/**
+	 * Forgets every failure, in the file as well.
+	 */
+	public synchronized void clear() {
+		_entries.clear();
+		_clearCount++;
+		requestRewrite();
+	}
+
+	/**
+	 * Reads the failures kept in a file, which from then on gets every new
+	 * failure appended. The file is rewritten without the expired ones.
+	 * Lookups carry on while it is read, failures recorded in the meantime
+	 * win over the ones in the file. Does nothing once a file is loaded.
+	 */
+	public void load(File file) {
+		int clearCount;
+		synchronized (this) {
+			if (_file != null) {
+				return;
+			}
+			_file = file;
+			clearCount = _clearCount;
+		}
+
+		LinkedHashMap<String, Failure> loaded = read(file);
+
+		synchronized (this) {
+			if (_file != file) {
+				// closed in the meantime.
+				return;
+			}
+			if (clearCount == _clearCount) {
+				loaded.putAll(_entries);
+				_entries.clear();
+				_entries.putAll(loaded);
+			}
+
+			synchronized (_writeLock) {
+				_writeThread = new WriteThread(file);
+				_writeThread.start();
+			}
+			requestRewrite();
+		}
+	}
+
+	/**
+	 * Stops writing to the file, failures are only kept in memory from then
+	 * on. Whatever is still waiting to be written is dropped.
+	 */
+	public synchronized void close() {
+		_file = null;
+		synchronized (_writeLock) {
+			if (_writeThread != null) {
+				_writeThread.interrupt();
+				_writeThread = null;
+			}
+			_pendingLines.clear();
+			_rewritePending = false;
+		}
+	}
+
+	/*
+	 * Reads every failure that hasn't expired, replaying forgotten ones.
+	 */
+	private static LinkedHashMap<String, Failure> read(File file) {
+		LinkedHashMap<String, Failure> loaded = new LinkedHashMap<String, Failure>();
+		if (!file.exists()) {
+			return loaded;
+		}
+
+		long now = System.currentTimeMillis();
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					readLine(loaded, line, now);
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to read " + file, e);
+		}
+		return loaded;
+	}
+
+	/*
+	 * Replays one line, ignoring torn ones. A later line for the same URL
+	 * replaces what came before, even if it is expired or a removal.
+	 */
+	private static void readLine(LinkedHashMap<String, Failure> loaded,
+			String line, long now) {
+		String[] parts = line.split(SEPARATOR, 3);
+		if (parts.length != 3) {
+			return;
+		}
+		try {
+			long expires = Long.parseLong(parts[0]);
+			int failure = Integer.parseInt(parts[1]);
+			loaded.remove(parts[2]);
+			if (expires > now && failure >= 0 && failure < FAILURE_TYPE_COUNT) {
+				loaded.put(parts[2], new Failure(failure, expires));
+			}
+		} catch (NumberFormatException e) {
+			// torn line.
+		}
+	}
+
+	/*
+	 * Queues a line for the write thread. Guarded by this.
+	 */
+	private void append(String line) {
+		if (_file == null) {
+			return;
+		}
+		synchronized (_writeLock) {
+			_pendingLines.add(line);
+			_writeLock.notify();
+		}
+	}
+
+	/*
+	 * Has the write thread write the file from scratch, the lines waiting
+	 * are in the entries already. Guarded by this.
+	 */
+	private void requestRewrite() {
+		if (_file == null) {
+			return;
+		}
+		synchronized (_writeLock) {
+			_pendingLines.clear();
+			_rewritePending = true;
+			_writeLock.notify();
+		}
+	}
+
+	private static String toLine(String url, int failure, long expires) {
+		return expires + SEPARATOR + failure + SEPARATOR + url + "\n";
+	}
+
+	/**
+	 * Writes what the cache queues to its file, in order, until the cache is
+	 * closed.
+	 */
+	private final class WriteThread extends Thread {
+		private final File file;
+		private Writer writer;
+
+		/**
+		 * Lines in the file, compacted once they are well past the entries
+		 * kept.
+		 */
+		private int lineCount = 0;
+
+		WriteThread(File file) {
+			super("Negative Cache Thread");
+			this.file = file;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!isInterrupted()) {
+					ArrayList<String> lines;
+					boolean rewrite;
+					synchronized (_writeLock) {
+						while (_pendingLines.isEmpty() && !_rewritePending) {
+							_writeLock.wait();
+						}
+						lines = _pendingLines;
+						_pendingLines = new ArrayList<String>();
+						rewrite = _rewritePending;
+						_rewritePending = false;
+					}
+
+					try {
+						if (rewrite || writer == null
+								|| lineCount + lines.size() >= 2 * _maxEntries) {
+							rewrite();
+						} else {
+							for (String line : lines) {
+								writer.write(line);
+							}
+							writer.flush();
+							lineCount += lines.size();
+						}
+					} catch (IOException e) {
+						Log.e(TAG, "Unable to write " + file, e);
+						closeWriter();
+					}
+				}
+			} catch (InterruptedException e) {
+				// closed.
+			} finally {
+				closeWriter();
+			}
+		}
+
+		/*
+		 * Writes the entries to a new file, moves it in place and keeps it
+		 * open for appending. Lines queued after the entries were copied are
+		 * appended after it.
+		 */
+		private void rewrite() throws IOException {
+			closeWriter();
+
+			ArrayList<String> lines = new ArrayList<String>();
+			synchronized (NegativeCache.this) {
+				for (Map.Entry<String, Failure> entry : _entries.entrySet()) {
+					lines.add(toLine(entry.getKey(), entry.getValue().failure,
+							entry.getValue().expires));
+				}
+			}
+
+			File temp = new File(file.getPath() + ".tmp");
+			Writer out = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(temp), "UTF-8"));
+			try {
+				for (String line : lines) {
+					out.write(line);
+				}
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to rename " + temp);
+			}
+
+			lineCount = lines.size();
+			writer = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(file, true), "UTF-8"));
+		}
+
+		private void closeWriter() {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException ignored) {
+				}
+				writer = null;
+			}
+		}
+	}
+
+	private static final class Failure {
+		final int failure;
+		final long expires;
+
+		Failure(int failure, long expires) {
+			this.failure = failure;
+			this.expires = expires;
+		}
+	}
+}
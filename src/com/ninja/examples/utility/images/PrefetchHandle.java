@@ -0,0 +1,319 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.ninja.examples.utility.images;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Progress of a bulk prefetch started with ImageProvider.prefetchAll(). The
+ * images are fetched to disk, small ones into the encoded memory cache as
+ * well, and never decoded, so warming a whole data set doesn't take any
+ * heap for bitmaps.
+ * 
+ * A few images are fetched at a time, in the order of the list, until the
+ * list, the count or the byte budget runs out or the deadline passes. The
+ * byte budget is checked before each image, so the images already on their
+ * way may go over it.
+ */
+public final class PrefetchHandle {
+
+	/**
+	 * Images fetched at the same time.
+	 */
+	private static final int WINDOW = 4;
+
+	private static final Handler MAIN_HANDLER = new Handler(
+			Looper.getMainLooper());
+
+	/**
+	 * Told about a bulk prefetch on the UI thread.
+	 */
+	public interface OnPrefetchListener {
+
+		/**
+		 * An image was fetched, found on disk already or failed.
+		 */
+		void onPrefetchProgress(PrefetchHandle handle);
+
+		/**
+		 * Called once, when there is nothing left to fetch, a budget is used
+		 * up, the deadline passed or the prefetch was cancelled.
+		 */
+		void onPrefetchComplete(PrefetchHandle handle);
+	}
+
+	private final List<String> _urls;
+	private final long _maxBytes;
+	private final int _maxCount;
+	private final int _priority;
+	private final OnPrefetchListener _listener;
+
+	/**
+	 * Guarded by this, like everything below.
+	 */
+	private int _next = 0;
+	private final ArrayList<ImageRequest> _active = new ArrayList<ImageRequest>();
+	private final HashSet<String> _seen = new HashSet<String>();
+
+	private int _fetchedCount = 0;
+	private int _cachedCount = 0;
+	private int _failedCount = 0;
+	private long _fetchedBytes = 0;
+
+	private boolean _done = false;
+	private boolean _cancelled = false;
+	private boolean _expired = false;
+
+	private final Runnable _expire = new Runnable() {
+		public void run() {
+			synchronized (PrefetchHandle.this) {
+				_expired = true;
+			}
+			cancel();
+		}
+	};
+
+	/**
+	 * @see ImageProvider#prefetchAll(List, long, int, int, long,
+	 *      OnPrefetchListener)
+	 */
+	PrefetchHandle(List<String> urls, long maxBytes, int maxCount,
+			int priority, OnPrefetchListener listener) {
+		_urls = new ArrayList<String>(urls);
+		_maxBytes = maxBytes;
+		_maxCount = maxCount > 0 ? Math.min(maxCount, urls.size()) : urls
+				.size();
+		_priority = priority;
+		_listener = listener;
+	}
+
+	/*
+	 * Starts fetching, and gives up at the deadline if there is one.
+	 */
+	void start(long timeout) {
+		if (timeout > 0) {
+			MAIN_HANDLER.postAtTime(_expire, SystemClock.uptimeMillis()
+					+ timeout);
+		}
+		List<ImageRequest> picked;
+		synchronized (this) {
+			picked = next();
+		}
+		queue(picked);
+	}
+
+	/**
+	 * Stops fetching. Images on their way are cancelled, what was fetched
+	 * stays on disk.
+	 */
+	public void cancel() {
+		ArrayList<ImageRequest> active;
+		synchronized (this) {
+			if (_done) {
+				return;
+			}
+			_cancelled = true;
+			active = new ArrayList<ImageRequest>(_active);
+			_active.clear();
+			finish();
+		}
+		for (ImageRequest request : active) {
+			ImageProvider.cancelBulk(request);
+		}
+	}
+
+	/**
+	 * Amount of images this prefetch looks at, the list or the count budget,
+	 * whichever is smaller.
+	 */
+	public int getCount() {
+		return _maxCount;
+	}
+
+	/**
+	 * Amount of images downloaded so far.
+	 */
+	public synchronized int getFetchedCount() {
+		return _fetchedCount;
+	}
+
+	/**
+	 * Amount of images that were on disk already, in the list before or on
+	 * their way for someone else.
+	 */
+	public synchronized int getCachedCount() {
+		return _cachedCount;
+	}
+
+	/**
+	 * Amount of images that couldn't be downloaded.
+	 */
+	public synchronized int getFailedCount() {
+		return _failedCount;
+	}
+
+	/**
+	 * Encoded bytes downloaded so far.
+	 */
+	public synchronized long getFetchedBytes() {
+		return _fetchedBytes;
+	}
+
+	/**
+	 * Share of getCount() that is done, fetched, cached or failed.
+	 */
+	public synchronized float getProgress() {
+		if (_maxCount == 0) {
+			return 1;
+		}
+		return (_fetchedCount + _cachedCount + _failedCount)
+				/ (float) _maxCount;
+	}
+
+	public synchronized boolean isDone() {
+		return _done;
+	}
+
+	/**
+	 * Whether it was cancelled, by cancel() or the deadline.
+	 */
+	public synchronized boolean isCancelled() {
+		return _cancelled;
+	}
+
+	/**
+	 * Whether the deadline passed before it was done.
+	 */
+	public synchronized boolean isExpired() {
+		return _expired;
+	}
+
+	/*
+	 * An image was downloaded, or found on disk with a length of 0.
+	 */
+	void onFetched(ImageRequest request, long length) {
+		List<ImageRequest> picked;
+		synchronized (this) {
+			if (!_active.remove(request)) {
+				return;
+			}
+			if (length > 0) {
+				_fetchedCount++;
+				_fetchedBytes += length;
+			} else {
+				_cachedCount++;
+			}
+			picked = next();
+		}
+		notifyProgress();
+		queue(picked);
+	}
+
+	void onFailed(ImageRequest request) {
+		List<ImageRequest> picked;
+		synchronized (this) {
+			if (!_active.remove(request)) {
+				return;
+			}
+			_failedCount++;
+			picked = next();
+		}
+		notifyProgress();
+		queue(picked);
+	}
+
+	/*
+	 * Picks images until the window is full, finishing once nothing is left
+	 * to pick or on its way. The picked ones count as active already, the
+	 * caller queues them once it let go of this. Guarded by this.
+	 */
+	private List<ImageRequest> next() {
+		ArrayList<ImageRequest> picked = new ArrayList<ImageRequest>();
+		while (!_done && _active.size() < WINDOW && _next < _maxCount
+				&& (_maxBytes <= 0 || _fetchedBytes < _maxBytes)) {
+			String url = ImageProvider.getCacheUrl(_urls.get(_next++));
+			if (url == null || url.length() == 0 || !_seen.add(url)) {
+				_cachedCount++;
+				continue;
+			}
+			ImageRequest request = new ImageRequest(url, 0, 0);
+			request.priority = _priority;
+			request.bulk = this;
+			_active.add(request);
+			picked.add(request);
+		}
+
+		if (!_done && _active.isEmpty()) {
+			finish();
+		}
+		return picked;
+	}
+
+	/*
+	 * Hands picked images to the provider without holding this, it may
+	 * start its workers. One already on its way for a view or another
+	 * prefetch counts as cached and makes room for the next.
+	 */
+	private void queue(List<ImageRequest> picked) {
+		while (!picked.isEmpty()) {
+			ArrayList<ImageRequest> more = new ArrayList<ImageRequest>();
+			for (ImageRequest request : picked) {
+				if (ImageProvider.queueBulk(request)) {
+					continue;
+				}
+				synchronized (this) {
+					if (_active.remove(request)) {
+						_cachedCount++;
+						more.addAll(next());
+					}
+				}
+			}
+			picked = more;
+		}
+	}
+
+	/*
+	 * Guarded by this.
+	 */
+	private void finish() {
+		_done = true;
+		MAIN_HANDLER.removeCallbacks(_expire);
+		if (_listener != null) {
+			MAIN_HANDLER.post(new Runnable() {
+				public void run() {
+					_listener.onPrefetchComplete(PrefetchHandle.this);
+				}
+			});
+		}
+	}
+
+	private void notifyProgress() {
+		if (_listener != null) {
+			MAIN_HANDLER.post(new Runnable() {
+				public void run() {
+					_listener.onPrefetchProgress(PrefetchHandle.this);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,768 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.ninja.examples.utility.images;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * A size bounded store on disk for small encoded images, packed one after
+ * the other into a few large slab files instead of a file each. Opening,
+ * closing and keeping track of hundreds of tiny files costs more than
+ * reading them; a slab is opened once and read through a memory mapping.
+ *
+ * Slabs are only ever appended to, the newest one until it is full. An
+ * image that is replaced, removed or evicted stays in its slab as dead
+ * bytes; once half of a full slab is dead, a background thread copies what
+ * is still live into the newest slab and deletes it.
+ *
+ * Only the slabs are written, the index from key to slab, offset and length
+ * is kept in memory. It is rebuilt by reading every slab when the store is
+ * opened, later records replacing earlier ones. Each record carries a CRC,
+ * a slab is cut off at the first record that doesn't match, such as one
+ * torn by a crash.
+ *
+ * Records look like:
+ *
+ * <pre>
+ * magic (4) | key length (4) | data length (4) | CRC (4) | key | data
+ * </pre>
+ *
+ * A removal is a record with a data length of -1 and no data. Compacting
+ * its slab copies it into the newest one as long as an older slab still
+ * holds a record of the key, so a removed image never comes back on the
+ * next open.
+ */
+public final class SlabStore {
+
+	private static final String TAG = "SlabStore";
+
+	private static final String SLAB_PREFIX = "slab-";
+
+	/**
+	 * "SLAB", starts every record.
+	 */
+	private static final int MAGIC = 0x534c4142;
+
+	private static final int HEADER_SIZE = 16;
+
+	/**
+	 * Data length of a record removing its key.
+	 */
+	private static final int REMOVED = -1;
+
+	/**
+	 * Largest image the store takes, bigger ones belong in a file of their
+	 * own.
+	 */
+	public static final int MAX_ENTRY_SIZE = 32 * 1024;
+
+	private static final int MAX_KEY_LENGTH = 256;
+
+	/**
+	 * A slab is full once it is this big.
+	 */
+	private static final long SLAB_SIZE = 2 * 1024 * 1024;
+
+	/**
+	 * Share of a full slab that has to be dead before it is compacted.
+	 */
+	private static final float COMPACT_DEAD_FRACTION = .5F;
+
+	private final File _directory;
+	private long _maxSize;
+
+	/**
+	 * Bytes of the live records in every slab combined.
+	 */
+	private long _size = 0;
+
+	/**
+	 * Where each key is, in access order, the first one is the least
+	 * recently used.
+	 */
+	private final LinkedHashMap<String, Location> _index = new LinkedHashMap<String, Location>(
+			0, .75F, true);
+
+	/**
+	 * Every slab by its number, the newest last.
+	 */
+	private final TreeMap<Integer, Slab> _slabs = new TreeMap<Integer, Slab>();
+
+	/**
+	 * The slab appended to, and the file open for it.
+	 */
+	private Slab _active;
+	private RandomAccessFile _activeFile;
+
+	private boolean _closed = false;
+	private boolean _compacting = false;
+
+	private long _hitCount;
+	private long _missCount;
+	private long _evictionCount;
+	private long _compactionCount;
+
+	private SlabStore(File directory, long maxSize) {
+		_directory = directory;
+		_maxSize = maxSize;
+	}
+
+	/**
+	 * Opens the store in a directory, rebuilding the index from its slabs.
+	 * 
+	 * @param directory
+	 *            - A directory this store owns.
+	 * @param maxSize
+	 *            - Maximum amount of bytes the live images may take. Slabs
+	 *            can hold up to as much again in dead bytes until they are
+	 *            compacted.
+	 */
+	public static SlabStore open(File directory, long maxSize)
+			throws IOException {
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Unable to create " + directory);
+		}
+
+		SlabStore store = new SlabStore(directory, maxSize);
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				int id = parseId(file.getName());
+				if (id >= 0) {
+					store._slabs.put(id, new Slab(id, file));
+				} else {
+					file.delete();
+				}
+			}
+		}
+
+		synchronized (store) {
+			for (Slab slab : store._slabs.values()) {
+				store.readSlab(slab);
+			}
+			if (!store._slabs.isEmpty()) {
+				Slab last = store._slabs.get(store._slabs.lastKey());
+				if (last.length < SLAB_SIZE) {
+					store.activate(last);
+				}
+			}
+			store.trimToSize();
+			store.compactIfNeeded();
+		}
+		return store;
+	}
+
+	/**
+	 * Whether an image of this many bytes belongs in a slab.
+	 */
+	public static boolean fits(long length) {
+		return length > 0 && length <= MAX_ENTRY_SIZE;
+	}
+
+	/**
+	 * Reads the image stored under a key, or returns null.
+	 */
+	public synchronized byte[] get(String key) throws IOException {
+		checkNotClosed();
+		Location location = _index.get(key);
+		if (location == null) {
+			_missCount++;
+			return null;
+		}
+
+		byte[] data = read(key, location);
+		if (data == null) {
+			// doesn't match its CRC anymore, forget about it.
+			Log.w(TAG, "Dropping corrupt record of " + key);
+			release(_index.remove(key));
+			_missCount++;
+			return null;
+		}
+		_hitCount++;
+		return data;
+	}
+
+	/**
+	 * Whether a key is stored, without counting as a hit or miss or making
+	 * the entry more recently used.
+	 */
+	public synchronized boolean contains(String key) {
+		return _index.containsKey(key);
+	}
+
+	/**
+	 * Appends an image to the newest slab, then evicts until the store is
+	 * back under budget.
+	 * 
+	 * @return false if the image is too big for a slab.
+	 */
+	public synchronized boolean put(String key, byte[] data)
+			throws IOException {
+		checkNotClosed();
+		byte[] keyBytes = key.getBytes("UTF-8");
+		if (!fits(data.length) || keyBytes.length > MAX_KEY_LENGTH) {
+			return false;
+		}
+
+		Location location = append(keyBytes, data);
+		Location previous = _index.put(key, location);
+		_size += location.getRecordSize();
+		location.slab.liveBytes += location.getRecordSize();
+		if (previous != null) {
+			release(previous);
+		}
+		trimToSize();
+		compactIfNeeded();
+		return true;
+	}
+
+	public synchronized boolean remove(String key) throws IOException {
+		checkNotClosed();
+		Location previous = _index.remove(key);
+		if (previous == null) {
+			return false;
+		}
+		release(previous);
+		append(key.getBytes("UTF-8"), null);
+		compactIfNeeded();
+		return true;
+	}
+
+	/**
+	 * Changes the budget, evicting straight away if it shrank.
+	 */
+	public synchronized void setMaxSize(long maxSize) throws IOException {
+		_maxSize = maxSize;
+		if (!_closed) {
+			trimToSize();
+			compactIfNeeded();
+		}
+	}
+
+	public synchronized long getMaxSize() {
+		return _maxSize;
+	}
+
+	/**
+	 * Amount of bytes the live images take, headers included.
+	 */
+	public synchronized long getSize() {
+		return _size;
+	}
+
+	/**
+	 * Amount of bytes the slab files take, dead images included.
+	 */
+	public synchronized long getFileSize() {
+		long length = 0;
+		for (Slab slab : _slabs.values()) {
+			length += slab.length;
+		}
+		return length;
+	}
+
+	/**
+	 * Amount of images currently stored.
+	 */
+	public synchronized int getCount() {
+		return _index.size();
+	}
+
+	public synchronized long getHitCount() {
+		return _hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return _missCount;
+	}
+
+	/**
+	 * Amount of images removed to stay under budget.
+	 */
+	public synchronized long getEvictionCount() {
+		return _evictionCount;
+	}
+
+	/**
+	 * Amount of slabs that were compacted and deleted.
+	 */
+	public synchronized long getCompactionCount() {
+		return _compactionCount;
+	}
+
+	public synchronized boolean isClosed() {
+		return _closed;
+	}
+
+	/**
+	 * Closes the store, a compaction that is running stops after the record
+	 * it is copying.
+	 */
+	public synchronized void close() throws IOException {
+		if (_closed) {
+			return;
+		}
+		_closed = true;
+		if (_activeFile != null) {
+			_activeFile.close();
+			_activeFile = null;
+		}
+		_active = null;
+		for (Slab slab : _slabs.values()) {
+			slab.map = null;
+		}
+	}
+
+	/**
+	 * Closes the store and deletes every slab.
+	 */
+	public synchronized void delete() throws IOException {
+		close();
+		for (Slab slab : _slabs.values()) {
+			slab.file.delete();
+		}
+		_slabs.clear();
+		_index.clear();
+		_size = 0;
+	}
+
+	private static int parseId(String name) {
+		if (!name.startsWith(SLAB_PREFIX)) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(name.substring(SLAB_PREFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/*
+	 * Replays the records of a slab into the index, cutting the slab off at
+	 * the first one that is torn or doesn't match its CRC.
+	 */
+	private void readSlab(Slab slab) throws IOException {
+		long fileLength = slab.file.length();
+		long offset = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(slab.file)));
+		try {
+			while (offset + HEADER_SIZE <= fileLength) {
+				int magic = in.readInt();
+				int keyLength = in.readInt();
+				int dataLength = in.readInt();
+				int crc = in.readInt();
+				if (magic != MAGIC || keyLength <= 0
+						|| keyLength > MAX_KEY_LENGTH
+						|| dataLength < REMOVED || dataLength > MAX_ENTRY_SIZE) {
+					break;
+				}
+
+				int bodyLength = keyLength + Math.max(dataLength, 0);
+				if (offset + HEADER_SIZE + bodyLength > fileLength) {
+					break;
+				}
+				byte[] body = new byte[bodyLength];
+				in.readFully(body);
+				if (crcOf(body, 0, body.length) != crc) {
+					break;
+				}
+
+				String key = new String(body, 0, keyLength, "UTF-8");
+				Location location = new Location(slab, offset, keyLength,
+						dataLength, crc);
+				Location previous;
+				if (dataLength == REMOVED) {
+					previous = _index.remove(key);
+					slab.removals.add(key);
+				} else {
+					previous = _index.put(key, location);
+					slab.keys.add(key);
+					_size += location.getRecordSize();
+					slab.liveBytes += location.getRecordSize();
+				}
+				if (previous != null) {
+					release(previous);
+				}
+				offset += location.getRecordSize();
+			}
+		} catch (EOFException e) {
+			// torn, what was read so far stands.
+		} finally {
+			in.close();
+		}
+
+		if (offset < fileLength) {
+			Log.w(TAG, "Cutting " + slab.file + " off after " + offset
+					+ " of " + fileLength + " bytes");
+			RandomAccessFile file = new RandomAccessFile(slab.file, "rw");
+			try {
+				file.setLength(offset);
+			} finally {
+				file.close();
+			}
+		}
+		slab.length = offset;
+	}
+
+	/*
+	 * Appends a record to the newest slab, starting a new one if it is full.
+	 * 
+	 * @param data - null to record a removal.
+	 */
+	private Location append(byte[] keyBytes, byte[] data) throws IOException {
+		int dataLength = data == null ? REMOVED : data.length;
+		int recordSize = HEADER_SIZE + keyBytes.length
+				+ Math.max(dataLength, 0);
+		if (_active == null || _active.length + recordSize > SLAB_SIZE) {
+			startSlab();
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(keyBytes);
+		if (data != null) {
+			crc.update(data);
+		}
+
+		ByteBuffer record = ByteBuffer.allocate(recordSize);
+		record.putInt(MAGIC);
+		record.putInt(keyBytes.length);
+		record.putInt(dataLength);
+		record.putInt((int) crc.getValue());
+		record.put(keyBytes);
+		if (data != null) {
+			record.put(data);
+		}
+
+		Location location = new Location(_active, _active.length,
+				keyBytes.length, dataLength, (int) crc.getValue());
+		_activeFile.seek(_active.length);
+		_activeFile.write(record.array());
+		_active.length += recordSize;
+		String key = new String(keyBytes, "UTF-8");
+		if (data == null) {
+			_active.removals.add(key);
+		} else {
+			_active.keys.add(key);
+		}
+		return location;
+	}
+
+	private void startSlab() throws IOException {
+		int id = _slabs.isEmpty() ? 0 : _slabs.lastKey() + 1;
+		Slab slab = new Slab(id, new File(_directory, SLAB_PREFIX + id));
+		_slabs.put(id, slab);
+		activate(slab);
+	}
+
+	private void activate(Slab slab) throws IOException {
+		if (_activeFile != null) {
+			_activeFile.close();
+		}
+		_active = slab;
+		_activeFile = new RandomAccessFile(slab.file, "rw");
+	}
+
+	/*
+	 * Reads the data of a record through the mapping of its slab, mapping
+	 * the slab again if the record was appended since.
+	 * 
+	 * @return null if the record doesn't match its CRC.
+	 */
+	private byte[] read(String key, Location location) throws IOException {
+		Slab slab = location.slab;
+		long end = location.offset + location.getRecordSize();
+		if (slab.map == null || slab.map.capacity() < end) {
+			RandomAccessFile file = new RandomAccessFile(slab.file, "r");
+			try {
+				// the mapping stays valid once the file is closed.
+				slab.map = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+						0, slab.length);
+			} finally {
+				file.close();
+			}
+		}
+
+		ByteBuffer buffer = slab.map.duplicate();
+		buffer.position((int) location.offset + HEADER_SIZE
+				+ location.keyLength);
+		byte[] data = new byte[location.dataLength];
+		buffer.get(data);
+
+		CRC32 crc = new CRC32();
+		crc.update(key.getBytes("UTF-8"));
+		crc.update(data);
+		return (int) crc.getValue() == location.crc ? data : null;
+	}
+
+	/*
+	 * Turns the record of a key that was replaced or removed into dead bytes.
+	 */
+	private void release(Location location) {
+		location.live = false;
+		_size -= location.getRecordSize();
+		location.slab.liveBytes -= location.getRecordSize();
+	}
+
+	private void trimToSize() throws IOException {
+		while (_size > _maxSize && !_index.isEmpty()) {
+			Map.Entry<String, Location> eldest = _index.entrySet().iterator()
+					.next();
+			remove(eldest.getKey());
+			_evictionCount++;
+		}
+	}
+
+	/*
+	 * Starts the compaction thread if a full slab is dead enough and it
+	 * isn't running yet.
+	 */
+	private void compactIfNeeded() {
+		if (_compacting || _closed || findCompactable() == null) {
+			return;
+		}
+		_compacting = true;
+		new CompactThread().start();
+	}
+
+	/*
+	 * The full slab with the most dead bytes, if enough of it is dead.
+	 */
+	private Slab findCompactable() {
+		Slab found = null;
+		float foundDead = COMPACT_DEAD_FRACTION;
+		for (Slab slab : _slabs.values()) {
+			if (slab == _active || slab.length == 0) {
+				continue;
+			}
+			float dead = 1 - slab.liveBytes / (float) slab.length;
+			if (dead >= foundDead) {
+				found = slab;
+				foundDead = dead;
+			}
+		}
+		return found;
+	}
+
+	/*
+	 * Copies the live records of a slab into the newest one, one at a time
+	 * so reads and writes go on in between, then deletes it. Records keep
+	 * their place in the access order. Removals are copied as well while a
+	 * record they removed could still be replayed from an older slab.
+	 */
+	private void compact(Slab slab) throws IOException {
+		ArrayList<String> keys = new ArrayList<String>();
+		ArrayList<Location> locations = new ArrayList<Location>();
+		ArrayList<String> removals;
+		synchronized (this) {
+			for (Map.Entry<String, Location> entry : _index.entrySet()) {
+				if (entry.getValue().slab == slab) {
+					keys.add(entry.getKey());
+					locations.add(entry.getValue());
+				}
+			}
+			removals = new ArrayList<String>(slab.removals);
+		}
+
+		for (int i = 0; i < keys.size(); i++) {
+			String key = keys.get(i);
+			Location location = locations.get(i);
+			synchronized (this) {
+				if (_closed) {
+					return;
+				}
+				if (!location.live) {
+					continue;
+				}
+				byte[] data = read(key, location);
+				if (data == null) {
+					Log.w(TAG, "Dropping corrupt record of " + key);
+					_index.remove(key);
+					release(location);
+					continue;
+				}
+				Location moved = append(key.getBytes("UTF-8"), data);
+				slab.liveBytes -= location.getRecordSize();
+				moved.slab.liveBytes += location.getRecordSize();
+				location.slab = moved.slab;
+				location.offset = moved.offset;
+			}
+		}
+
+		for (String key : removals) {
+			synchronized (this) {
+				if (_closed) {
+					return;
+				}
+				// stored again since, the newer record wins on replay.
+				if (!_index.containsKey(key) && isInOlderSlab(key, slab)) {
+					append(key.getBytes("UTF-8"), null);
+				}
+			}
+		}
+
+		synchronized (this) {
+			if (_closed || slab.liveBytes > 0) {
+				return;
+			}
+			_slabs.remove(slab.id);
+			slab.map = null;
+			if (!slab.file.delete()) {
+				Log.w(TAG, "Unable to delete " + slab.file);
+			}
+			_compactionCount++;
+		}
+	}
+
+	/*
+	 * Whether a slab older than this one holds a record of the key, live or
+	 * dead.
+	 */
+	private boolean isInOlderSlab(String key, Slab slab) {
+		for (Slab older : _slabs.headMap(slab.id).values()) {
+			if (older.keys.contains(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void checkNotClosed() throws IOException {
+		if (_closed) {
+			throw new IOException("Store is closed");
+		}
+	}
+
+	private static int crcOf(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Compacts slabs one after the other until none is dead enough.
+	 */
+	private final class CompactThread extends Thread {
+
+		CompactThread() {
+			super("SlabCompactThread");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			try {
+				while (true) {
+					Slab slab;
+					synchronized (SlabStore.this) {
+						slab = _closed ? null : findCompactable();
+						if (slab == null) {
+							_compacting = false;
+							return;
+						}
+					}
+					compact(slab);
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Compaction failed", e);
+				synchronized (SlabStore.this) {
+					_compacting = false;
+				}
+			}
+		}
+	}
+
+	private static final class Slab {
+		final int id;
+		final File file;
+
+		/**
+		 * Bytes of valid records, where the next one is appended.
+		 */
+		long length;
+
+		/**
+		 * Bytes of the records still in the index.
+		 */
+		long liveBytes;
+
+		/**
+		 * Read only mapping of the slab, null until it is first read.
+		 */
+		MappedByteBuffer map;
+
+		/**
+		 * Keys the slab holds an image of, live or dead, and keys it holds a
+		 * removal of.
+		 */
+		final HashSet<String> keys = new HashSet<String>();
+		final HashSet<String> removals = new HashSet<String>();
+
+		Slab(int id, File file) {
+			this.id = id;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Where a record is. Compaction moves it, so slab and offset change.
+	 */
+	private static final class Location {
+		Slab slab;
+		long offset;
+		final int keyLength;
+		final int dataLength;
+		final int crc;
+
+		/**
+		 * False once the key was replaced or removed.
+		 */
+		boolean live = true;
+
+		Location(Slab slab, long offset, int keyLength, int dataLength,
+				int crc) {
+			this.slab = slab;
+			this.offset = offset;
+			this.keyLength = keyLength;
+			this.dataLength = dataLength;
+			this.crc = crc;
+		}
+
+		int getRecordSize() {
+			return HEADER_SIZE + keyLength + Math.max(dataLength, 0);
+		}
+	}
+}
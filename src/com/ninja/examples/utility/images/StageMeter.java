@@ -0,0 +1,69 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package com.ninja.examples.utility.images;
+
+/**
+ * Counts the work one stage of the image pipeline finishes and how much it
+ * finished per second lately.
+ */
+final class StageMeter {
+
+	/**
+	 * Length of the window the rate is measured over.
+	 */
+	private static final long WINDOW_MILLIS = 2000;
+
+	private long _count = 0;
+	private long _windowStart = System.currentTimeMillis();
+	private long _windowCount = 0;
+	private float _rate = 0;
+
+	/**
+	 * Counts one finished item.
+	 */
+	synchronized void mark() {
+		roll(System.currentTimeMillis());
+		_count++;
+		_windowCount++;
+	}
+
+	synchronized long getCount() {
+		return _count;
+	}
+
+	/**
+	 * Items finished per second over the last full window.
+	 */
+	synchronized float getRate() {
+		roll(System.currentTimeMillis());
+		return _rate;
+	}
+
+	/*
+	 * Starts a new window once the current one is over.
+	 */
+	private void roll(long now) {
+		long elapsed = now - _windowStart;
+		if (elapsed < WINDOW_MILLIS) {
+			return;
+		}
+		_rate = _windowCount * 1000F / elapsed;
+		_windowStart = now;
+		_windowCount = 0;
+	}
+}
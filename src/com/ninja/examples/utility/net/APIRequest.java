@@ -18,6 +18,8 @@ package com.ninja.examples.utility.net;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpVersion;
 import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
@@ -32,6 +34,13 @@ import org.apache.http.protocol.HttpContext;
 public class APIRequest {
 
 	private static final int WS_TIMEOUT = 15000;
+
+	/**
+	 * Connections kept per host, the default of 2 would leave image
+	 * downloads waiting on each other.
+	 */
+	private static final int MAX_CONNECTIONS_PER_HOST = 6;
+	private static final int MAX_CONNECTIONS = 20;
 	public static DefaultHttpClient httpclient;
 
 
@@ -47,6 +56,10 @@ public class APIRequest {
 			HttpConnectionParams.setConnectionTimeout(params, WS_TIMEOUT);
 			HttpConnectionParams.setSoTimeout(params, WS_TIMEOUT);
 
+			ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+			ConnManagerParams.setMaxConnectionsPerRoute(params,
+					new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+
 			SchemeRegistry registry = new SchemeRegistry();
 			registry.register(new Scheme("http", PlainSocketFactory
 					.getSocketFactory(), 80));
@@ -0,0 +1,174 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package com.ninja.examples.utility.net;
+
+import java.util.HashMap;
+
+import android.os.SystemClock;
+
+/**
+ * Keeps track of which hosts keep failing. After a number of failures in a
+ * row the circuit for a host opens and requests to it fail fast instead of
+ * waiting on timeouts. Once the cool down is over a single request is let
+ * through as a probe: if it works the circuit closes again, if not it stays
+ * open for twice as long.
+ *
+ * The probe reports back on the thread it was allowed on, so a request is
+ * expected to run on one thread from allowRequest() to onSuccess() or
+ * onFailure(). Requests that were already running when the circuit opened
+ * and fail afterwards don't count as failed probes.
+ */
+public class HostCircuitBreaker {
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+	public static final long DEFAULT_COOL_DOWN = 10 * 1000;
+
+	/**
+	 * Longest a circuit stays open between probes.
+	 */
+	public static final long MAX_COOL_DOWN = 2 * 60 * 1000;
+
+	private final int _failureThreshold;
+	private final long _coolDown;
+
+	/**
+	 * Hosts that failed lately, guarded by itself. Healthy hosts aren't kept.
+	 */
+	private final HashMap<String, Circuit> _circuits = new HashMap<String, Circuit>();
+
+	public HostCircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_COOL_DOWN);
+	}
+
+	/**
+	 * @param failureThreshold
+	 *            - Failures in a row that open the circuit.
+	 * @param coolDown
+	 *            - Milliseconds the circuit stays open the first time.
+	 */
+	public HostCircuitBreaker(int failureThreshold, long coolDown) {
+		_failureThreshold = Math.max(1, failureThreshold);
+		_coolDown = Math.max(1, coolDown);
+	}
+
+	/**
+	 * Whether a request to the host may go ahead. While open this is false,
+	 * except for the one probe let through after the cool down.
+	 */
+	public boolean allowRequest(String host) {
+		synchronized (_circuits) {
+			Circuit circuit = _circuits.get(host);
+			if (circuit == null || circuit.openUntil == 0) {
+				return true;
+			}
+
+			long now = SystemClock.elapsedRealtime();
+			if (now < circuit.openUntil) {
+				return false;
+			}
+			// one probe per cool down, a probe that never reports back
+			// doesn't keep the circuit shut for good.
+			circuit.openUntil = now + circuit.coolDown;
+			circuit.probe = Thread.currentThread();
+			return true;
+		}
+	}
+
+	public void onSuccess(String host) {
+		synchronized (_circuits) {
+			_circuits.remove(host);
+		}
+	}
+
+	public void onFailure(String host) {
+		synchronized (_circuits) {
+			Circuit circuit = _circuits.get(host);
+			if (circuit == null) {
+				circuit = new Circuit();
+				_circuits.put(host, circuit);
+			}
+
+			circuit.failures++;
+			long now = SystemClock.elapsedRealtime();
+			if (circuit.openUntil != 0) {
+				if (circuit.probe != Thread.currentThread()) {
+					// started before the circuit opened, it only tells what
+					// is known already.
+					return;
+				}
+				// the probe failed.
+				circuit.probe = null;
+				circuit.coolDown = Math.min(circuit.coolDown * 2, MAX_COOL_DOWN);
+				circuit.openUntil = now + circuit.coolDown;
+			} else if (circuit.failures >= _failureThreshold) {
+				circuit.coolDown = _coolDown;
+				circuit.openUntil = now + circuit.coolDown;
+			}
+		}
+	}
+
+	/**
+	 * Whether requests to the host currently fail fast.
+	 */
+	public boolean isOpen(String host) {
+		synchronized (_circuits) {
+			Circuit circuit = _circuits.get(host);
+			return circuit != null && circuit.openUntil != 0
+					&& SystemClock.elapsedRealtime() < circuit.openUntil;
+		}
+	}
+
+	/**
+	 * Amount of hosts whose circuit is open.
+	 */
+	public int getOpenCount() {
+		synchronized (_circuits) {
+			int count = 0;
+			long now = SystemClock.elapsedRealtime();
+			for (Circuit circuit : _circuits.values()) {
+				if (circuit.openUntil != 0 && now < circuit.openUntil) {
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+
+	public void reset() {
+		synchronized (_circuits) {
+			_circuits.clear();
+		}
+	}
+
+	private static final class Circuit {
+		int failures;
+
+		/**
+		 * 0 while closed.
+		 */
+		long openUntil;
+		long coolDown;
+
+		/**
+		 * Thread running the probe let through last, null if it reported
+		 * back or there was none yet.
+		 */
+		Thread probe;
+	}
+}
@@ -0,0 +1,94 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package com.ninja.examples.utility.net;
+
+import java.util.Random;
+
+/**
+ * How often and how soon a failed request is tried again. The wait doubles
+ * with every attempt up to a maximum, and is picked at random below that, so
+ * requests that failed together don't all come back at the same moment.
+ */
+public class RetryPolicy {
+
+	/**
+	 * Attempts, the first one included, before giving up by default.
+	 */
+	public static final int DEFAULT_MAX_ATTEMPTS = 4;
+
+	public static final long DEFAULT_BASE_DELAY = 500;
+
+	public static final long DEFAULT_MAX_DELAY = 30 * 1000;
+
+	private static final Random RANDOM = new Random();
+
+	private final int _maxAttempts;
+	private final long _baseDelay;
+	private final long _maxDelay;
+
+	public RetryPolicy() {
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * @param maxAttempts
+	 *            - Attempts, the first one included, 1 never retries.
+	 * @param baseDelay
+	 *            - Longest wait in milliseconds before the first retry.
+	 * @param maxDelay
+	 *            - Longest wait in milliseconds before any retry.
+	 */
+	public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+		_maxAttempts = Math.max(1, maxAttempts);
+		_baseDelay = Math.max(1, baseDelay);
+		_maxDelay = Math.max(_baseDelay, maxDelay);
+	}
+
+	/**
+	 * @param attempts
+	 *            - Attempts that failed so far.
+	 */
+	public boolean shouldRetry(int attempts) {
+		return attempts < _maxAttempts;
+	}
+
+	/**
+	 * Milliseconds to wait before the next attempt: a random time up to the
+	 * base delay doubled for every failed attempt but the first.
+	 * 
+	 * @param attempts
+	 *            - Attempts that failed so far, at least 1.
+	 */
+	public long getDelay(int attempts) {
+		long ceiling = _baseDelay;
+		for (int i = 1; i < attempts && ceiling < _maxDelay; i++) {
+			ceiling <<= 1;
+		}
+		ceiling = Math.min(ceiling, _maxDelay);
+
+		// half fixed and half random, never retries straight away.
+		long half = ceiling / 2;
+		synchronized (RANDOM) {
+			return half + (long) (RANDOM.nextDouble() * (ceiling - half));
+		}
+	}
+
+	public int getMaxAttempts() {
+		return _maxAttempts;
+	}
+}
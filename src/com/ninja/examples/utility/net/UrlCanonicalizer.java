@@ -0,0 +1,125 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.ninja.examples.utility.net;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Turns the different spellings of a URL into one, so they are cached and
+ * downloaded once: the scheme and host are lower cased, a default port and
+ * the fragment are dropped, an empty path becomes "/" and the query
+ * parameters are sorted. Host aliases, such as several CDN host names
+ * serving the same files, map onto one host, and parameters that don't
+ * change the response, such as tracking parameters, can be dropped.
+ * 
+ * Override canonicalize(String) for rules of your own. A URL that can't be
+ * parsed is left as it is.
+ */
+public class UrlCanonicalizer {
+
+	private final HashMap<String, String> _hostAliases = new HashMap<String, String>();
+	private final HashSet<String> _ignoredParameters = new HashSet<String>();
+
+	/**
+	 * Treats a host as another one, both are compared in lower case.
+	 */
+	public synchronized void addHostAlias(String alias, String host) {
+		_hostAliases.put(alias.toLowerCase(), host.toLowerCase());
+	}
+
+	/**
+	 * Drops a query parameter, by its exact name, from every URL.
+	 */
+	public synchronized void addIgnoredParameter(String name) {
+		_ignoredParameters.add(name);
+	}
+
+	public String canonicalize(String url) {
+		if (url == null) {
+			return null;
+		}
+
+		URL parsed;
+		try {
+			parsed = new URL(url);
+		} catch (MalformedURLException e) {
+			return url;
+		}
+
+		StringBuilder builder = new StringBuilder(url.length());
+		builder.append(parsed.getProtocol().toLowerCase()).append("://");
+		if (parsed.getUserInfo() != null) {
+			builder.append(parsed.getUserInfo()).append('@');
+		}
+		builder.append(getHost(parsed.getHost().toLowerCase()));
+		if (parsed.getPort() != -1
+				&& parsed.getPort() != parsed.getDefaultPort()) {
+			builder.append(':').append(parsed.getPort());
+		}
+
+		String path = parsed.getPath();
+		builder.append(path == null || path.length() == 0 ? "/" : path);
+
+		String query = getQuery(parsed.getQuery());
+		if (query.length() > 0) {
+			builder.append('?').append(query);
+		}
+		return builder.toString();
+	}
+
+	private synchronized String getHost(String host) {
+		String alias = _hostAliases.get(host);
+		return alias != null ? alias : host;
+	}
+
+	/*
+	 * The parameters sorted, without the ignored and empty ones.
+	 */
+	private synchronized String getQuery(String query) {
+		if (query == null || query.length() == 0) {
+			return "";
+		}
+
+		ArrayList<String> parameters = new ArrayList<String>();
+		for (String parameter : query.split("&")) {
+			if (parameter.length() == 0) {
+				continue;
+			}
+			int equals = parameter.indexOf('=');
+			String name = equals < 0 ? parameter : parameter.substring(0,
+					equals);
+			if (!_ignoredParameters.contains(name)) {
+				parameters.add(parameter);
+			}
+		}
+		Collections.sort(parameters);
+
+		StringBuilder builder = new StringBuilder(query.length());
+		for (String parameter : parameters) {
+			if (builder.length() > 0) {
+				builder.append('&');
+			}
+			builder.append(parameter);
+		}
+		return builder.toString();
+	}
+}
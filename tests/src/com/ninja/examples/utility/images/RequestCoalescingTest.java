@@ -0,0 +1,290 @@
+/*
+Copyright 2011 Ryan Mattison
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.ninja.examples.utility.images;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+/**
+ * Many threads asking for overlapping URLs at once, with and without a bulk
+ * prefetch of the same URLs running, must download each URL exactly once.
+ * The images come from a server on the loopback interface that counts the
+ * requests for each path.
+ */
+public class RequestCoalescingTest extends AndroidTestCase {
+
+	private static final int URL_COUNT = 24;
+	private static final int THREAD_COUNT = 16;
+	private static final int REQUESTS_PER_THREAD = 200;
+
+	/**
+	 * Size every thread asks for, so they all share one request per URL.
+	 */
+	private static final int SIZE = 32;
+
+	private static final long TIMEOUT = 30 * 1000;
+
+	/**
+	 * Time given to a second download that shouldn't happen to show up.
+	 */
+	private static final long SETTLE_TIME = 500;
+
+	private CountingServer _server;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		ImageProvider.clear();
+		ImageProvider.clearNegativeCache();
+
+		// new paths every run, the disk cache outlives the test.
+		String prefix = "/" + System.currentTimeMillis() + "/";
+		Map<String, byte[]> images = new HashMap<String, byte[]>();
+		for (int i = 0; i < URL_COUNT; i++) {
+			images.put(prefix + i + ".png", encodeImage(i));
+		}
+		_server = new CountingServer(images);
+		_server.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		_server.close();
+		ImageProvider.clear();
+		super.tearDown();
+	}
+
+	public void testOneFetchPerUrl() throws Throwable {
+		List<String> urls = _server.getUrls();
+		requestConcurrently(urls);
+		awaitCached(urls);
+		SystemClock.sleep(SETTLE_TIME);
+		assertOneFetchEach();
+	}
+
+	public void testOneFetchPerUrlDuringBulkPrefetch() throws Throwable {
+		List<String> urls = _server.getUrls();
+		PrefetchHandle handle = ImageProvider.prefetchAll(urls, 0, 0,
+				ImageProvider.PRIORITY_LOW, 0, null);
+		requestConcurrently(urls);
+		awaitCached(urls);
+
+		long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+		while (!handle.isDone() && SystemClock.uptimeMillis() < deadline) {
+			SystemClock.sleep(50);
+		}
+		assertTrue("prefetch not done", handle.isDone());
+		SystemClock.sleep(SETTLE_TIME);
+		assertOneFetchEach();
+	}
+
+	/*
+	 * Lets every thread loose at the same moment, each asking for random
+	 * URLs of the list.
+	 */
+	private void requestConcurrently(final List<String> urls)
+			throws Throwable {
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < THREAD_COUNT; i++) {
+			final Random random = new Random(i);
+			Thread thread = new Thread("Requester " + i) {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < REQUESTS_PER_THREAD; j++) {
+							String url = urls.get(random.nextInt(urls.size()));
+							ImageProvider.getBitmap(url, SIZE, SIZE, null,
+									"RequestCoalescingTest");
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+	}
+
+	private void awaitCached(List<String> urls) {
+		long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+		for (String url : urls) {
+			while (ImageProvider.getBitmapFromCache(url, SIZE, SIZE) == null) {
+				assertTrue("never loaded: " + url,
+						SystemClock.uptimeMillis() < deadline);
+				SystemClock.sleep(50);
+			}
+		}
+	}
+
+	private void assertOneFetchEach() {
+		for (String path : _server.getPaths()) {
+			assertEquals("fetches of " + path, 1, _server.getHits(path));
+		}
+	}
+
+	/*
+	 * A small PNG of its own color, no two URLs share their bytes.
+	 */
+	private static byte[] encodeImage(int index) {
+		Bitmap bitmap = Bitmap.createBitmap(SIZE, SIZE,
+				Bitmap.Config.ARGB_8888);
+		bitmap.eraseColor(0xFF000000 | (index * 0x0A0B0C));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+		bitmap.recycle();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Stands in for the network: serves one image per path over HTTP and
+	 * counts the requests for each.
+	 */
+	private static final class CountingServer extends Thread {
+
+		private final ServerSocket _socket;
+		private final Map<String, byte[]> _images;
+		private final ConcurrentHashMap<String, AtomicInteger> _hits = new ConcurrentHashMap<String, AtomicInteger>();
+
+		CountingServer(Map<String, byte[]> images) throws IOException {
+			super("Counting Server");
+			setDaemon(true);
+			_images = images;
+			_socket = new ServerSocket(0, 50,
+					InetAddress.getByName("127.0.0.1"));
+		}
+
+		List<String> getPaths() {
+			return new ArrayList<String>(_images.keySet());
+		}
+
+		List<String> getUrls() {
+			ArrayList<String> urls = new ArrayList<String>();
+			for (String path : _images.keySet()) {
+				urls.add("http://127.0.0.1:" + _socket.getLocalPort() + path);
+			}
+			return urls;
+		}
+
+		int getHits(String path) {
+			AtomicInteger hits = _hits.get(path);
+			return hits == null ? 0 : hits.get();
+		}
+
+		void close() {
+			try {
+				_socket.close();
+			} catch (IOException e) {
+				// closed already.
+			}
+		}
+
+		@Override
+		public void run() {
+			while (!_socket.isClosed()) {
+				final Socket client;
+				try {
+					client = _socket.accept();
+				} catch (IOException e) {
+					// closed.
+					return;
+				}
+				new Thread("Counting Server Client") {
+					@Override
+					public void run() {
+						serve(client);
+					}
+				}.start();
+			}
+		}
+
+		private void serve(Socket client) {
+			try {
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(client.getInputStream(),
+								"US-ASCII"));
+				String requestLine = reader.readLine();
+				String line;
+				do {
+					line = reader.readLine();
+				} while (line != null && line.length() > 0);
+				if (requestLine == null) {
+					return;
+				}
+
+				String path = requestLine.split(" ")[1];
+				AtomicInteger hits = new AtomicInteger();
+				AtomicInteger previous = _hits.putIfAbsent(path, hits);
+				(previous != null ? previous : hits).incrementAndGet();
+
+				byte[] body = _images.get(path);
+				StringBuilder header = new StringBuilder();
+				header.append(body != null ? "HTTP/1.0 200 OK\r\n"
+						: "HTTP/1.0 404 Not Found\r\n");
+				header.append("Content-Type: image/png\r\n");
+				header.append("Content-Length: ")
+						.append(body != null ? body.length : 0).append("\r\n");
+				header.append("Connection: close\r\n\r\n");
+
+				OutputStream out = client.getOutputStream();
+				out.write(header.toString().getBytes("US-ASCII"));
+				if (body != null) {
+					out.write(body);
+				}
+				out.flush();
+			} catch (IOException e) {
+				// the client went away, nothing to answer.
+			} finally {
+				try {
+					client.close();
+				} catch (IOException e) {
+					// closed already.
+				}
+			}
+		}
+	}
+}